@@ -8,11 +8,12 @@ enum DeclType {
 };
 
 enum StmtType {
-    EXPR_STMT, IF_STMT, WHILE_STMT, RETURN_STMT, BLOCK_STMT
+    EXPR_STMT, IF_STMT, WHILE_STMT, RETURN_STMT, BLOCK_STMT, BREAK_STMT, CONTINUE_STMT
 };
 
 enum ExprType {
-    ASSIGN_EXPR, BINARY_EXPR, UNARY, FUNCTION, CALL, PRIMARY, OBJECT, PROPERTY_ACCESS
+    ASSIGN_EXPR, BINARY_EXPR, UNARY, FUNCTION, CALL, PRIMARY, OBJECT, PROPERTY_ACCESS,
+    ARRAY, INDEX, INDEX_ASSIGN
 };
 
 enum PrimaryType {ID, NUM, STR, B, NIL};
@@ -44,6 +45,7 @@ class Node {
 
 class Pgm extends Node {
     List<Decl> decls;
+    int nslots; // script frame size, set by Resolver
 }
 
 class Decl extends Node {
@@ -93,6 +95,9 @@ class Var extends Node {
 
 class Id extends Node {
     String name;
+    int depth = -1; // frames to hop up, -1 for globals; set by Resolver
+    int slot = -1;
+    int global = -1; // its name's id within its script, which indexes Environment.cells
 
     Id(String str, int line, int col) {
         this.name = str;
@@ -135,6 +140,10 @@ class Stmt extends Node {
         this.type = StmtType.BLOCK_STMT; this.b = e;
     }
 
+    Stmt(StmtType type) { // break, continue
+        this.type = type;
+    }
+
     public String toString() {
         String child;
         switch (this.type) {
@@ -244,6 +253,9 @@ class Expr extends Node {
     PrimaryExpr pe;
     ObjectExpr oe;
     PropertyAccessExpr pae;
+    ArrayExpr ae;
+    IndexExpr ie;
+    IndexAssignExpr iae;
 
     ExprType type;
 
@@ -282,6 +294,18 @@ class Expr extends Node {
     Expr(PropertyAccessExpr e) {
         this.pae = e; this.type = ExprType.PROPERTY_ACCESS;
     }
+
+    Expr(ArrayExpr e) {
+        this.ae = e; this.type = ExprType.ARRAY;
+    }
+
+    Expr(IndexExpr e) {
+        this.ie = e; this.type = ExprType.INDEX;
+    }
+
+    Expr(IndexAssignExpr e) {
+        this.iae = e; this.type = ExprType.INDEX_ASSIGN;
+    }
 }
 
 class AssignExpr {
@@ -298,11 +322,13 @@ class BinaryExpr {
     Expr lhs;
     Expr rhs;
     Op o;
+    BinaryNode node; // rewrites itself as operand types are observed
 
     BinaryExpr(Expr lhs, Expr rhs, Op o) {
         this.lhs = lhs;
         this.rhs = rhs;
         this.o = o;
+        this.node = BinaryNode.create(this);
     }
 }
 
@@ -317,16 +343,41 @@ class UnaryExpr {
 
 class FunctionExpr {
     ArrayList<Id> a;
-    Stmt b;
+    volatile Stmt b; // null until a lazily parsed body is needed, see body()
+    LazyBody lazy; // where the unparsed body is in the source
+    int nslots; // frame size, set by Resolver
+    boolean captures; // body creates closures, so its frames may outlive the call
+    String name; // of the variable it was declared with, if any
+    int calls; // counted until Jit.THRESHOLD
+    boolean tiered; // Jit has tried to compile it
+    JitFunction jit; // compiled code, once hot
 
     FunctionExpr(ArrayList<Id> a, Stmt b) {
         this.a = a; this.b = b;
     }
+
+    /*
+     * The body, parsed on first use if the parser skipped it. b is only set
+     * once the body is resolved, so a thread that sees it can run it.
+     */
+    Stmt body() throws SyntaxError {
+        Stmt body = b;
+        if (body != null)
+            return body;
+        synchronized (this) {
+            if (b == null) {
+                b = lazy.parse(this);
+                lazy = null;
+            }
+            return b;
+        }
+    }
 }
 
 class CallExpr {
     Id id;
     ArrayList<Expr> a;
+    boolean tail; // `return f(...)` in a function body, set by Resolver
 
     CallExpr(Id id, ArrayList<Expr> a) {
         this.id = id; this.a = a;
@@ -341,16 +392,15 @@ class PrimaryExpr {
     Object nil;
     PrimaryType type;
 
-    PrimaryExpr(Token t) throws SyntaxError {
-        switch (t.type) {
-            case TRUE: this.b = true; this.type = PrimaryType.B; break;
-            case FALSE: this.b = false; this.type = PrimaryType.B; break;
-            case NIL: this.nil = null; this.type = PrimaryType.NIL; break;
-            case NUMBER: this.num = Double.parseDouble(t.lexeme); this.type = PrimaryType.NUM; break;
-            case STRING: this.str = t.lexeme; this.type = PrimaryType.STR; break;
-            case IDENTIFIER: this.id = new Id(t.lexeme, t.line, t.charPos); this.type = PrimaryType.ID; break;
-            default: throw new SyntaxError("parse_primary_expr()");
-        }
+    PrimaryExpr(Id id) {
+        this.id = id; this.type = PrimaryType.ID;
+    }
+
+    PrimaryExpr(Object literal) { // true, false, nil, a number or a string
+        if (literal instanceof Boolean) { this.b = (Boolean) literal; this.type = PrimaryType.B; }
+        else if (literal instanceof Number) { this.num = (Number) literal; this.type = PrimaryType.NUM; }
+        else if (literal instanceof String) { this.str = (String) literal; this.type = PrimaryType.STR; }
+        else this.type = PrimaryType.NIL;
     }
 
     public String toString() {
@@ -370,15 +420,16 @@ class PrimaryExpr {
 class ObjectExpr {
     ArrayList<String> keys;
     ArrayList<Expr> values;
+    ObjectTemplate template;
 
     ObjectExpr() {
-        this.keys = new ArrayList<>();
-        this.values = new ArrayList<>();
+        this(new ArrayList<>(), new ArrayList<>());
     }
 
     ObjectExpr(ArrayList<String> keys, ArrayList<Expr> values) {
         this.keys = keys;
         this.values = values;
+        this.template = new ObjectTemplate(keys.toArray(new String[0]));
     }
 
     public String toString() {
@@ -396,13 +447,51 @@ class ObjectExpr {
 class PropertyAccessExpr {
     Expr object;
     String property;
+    PropertyCache cache;
 
     PropertyAccessExpr(Expr object, String property) {
         this.object = object;
         this.property = property;
+        this.cache = new PropertyCache(property);
     }
 
     public String toString() {
         return String.format("<PropertyAccess> %s.%s", object.toString(), property);
     }
 }
+
+class ArrayExpr {
+    ArrayList<Expr> values;
+
+    ArrayExpr(ArrayList<Expr> values) {
+        this.values = values;
+    }
+
+    public String toString() {
+        return String.format("<Array> %s", values);
+    }
+}
+
+class IndexExpr {
+    Expr array;
+    Expr index;
+
+    IndexExpr(Expr array, Expr index) {
+        this.array = array; this.index = index;
+    }
+
+    public String toString() {
+        return String.format("<Index> %s[%s]", array, index);
+    }
+}
+
+/* array[index] = e */
+class IndexAssignExpr {
+    Expr array;
+    Expr index;
+    Expr e;
+
+    IndexAssignExpr(Expr array, Expr index, Expr e) {
+        this.array = array; this.index = index; this.e = e;
+    }
+}
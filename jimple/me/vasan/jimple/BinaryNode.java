@@ -0,0 +1,312 @@
+package me.vasan.jimple;
+
+/*
+ * Executable node behind every BinaryExpr. A site starts out uninitialized,
+ * looks at the first operands it sees and rewrites itself (site.node) to a
+ * specialization: doubles only, string concatenation, or generic. A
+ * specialization that sees operands it can't handle rewrites the site to
+ * the generic node, which never specializes again.
+ *
+ * The double specializations evaluate their operands through
+ * Interpreter.num() so numbers stay unboxed along the way; see there for
+ * how a non-number is handed back.
+ */
+abstract class BinaryNode {
+    final BinaryExpr site;
+
+    BinaryNode(BinaryExpr site) {
+        this.site = site;
+    }
+
+    abstract Object execute(Interpreter in, Environment env) throws RuntimeError;
+
+    double executeDouble(Interpreter in, Environment env) throws RuntimeError {
+        return in.unbox(execute(in, env));
+    }
+
+    static BinaryNode create(BinaryExpr site) {
+        switch (site.o) {
+            case LOR: return new Or(site);
+            case LAN: return new And(site);
+            default: return new Uninitialized(site);
+        }
+    }
+
+    /* the lhs came back as a non-number: finish generically */
+    final Object missLhs(Interpreter in, Environment env, Object lhs) throws RuntimeError {
+        return miss(lhs, in.interpret(site.rhs, env));
+    }
+
+    final Object miss(Object lhs, Object rhs) throws RuntimeError {
+        site.node = new Generic(site);
+        return generic(site.o, lhs, rhs);
+    }
+
+    static boolean equal(Object lhs, Object rhs) {
+        if (lhs instanceof Number)
+            return rhs instanceof Number && ((Number) lhs).doubleValue() == ((Number) rhs).doubleValue();
+        else if (lhs instanceof String)
+            return lhs.equals(rhs);
+        else
+            return lhs == rhs;
+    }
+
+    static Object generic(Op o, Object lhs, Object rhs) throws RuntimeError {
+        switch (o) {
+            case PLUS:
+                if (lhs instanceof String) return lhs + ((String) rhs);
+                return ((Number) lhs).doubleValue() + ((Number) rhs).doubleValue();
+            case MIN:
+                return ((Number) lhs).doubleValue() - ((Number) rhs).doubleValue();
+            case MUL:
+                return ((Number) lhs).doubleValue() * ((Number) rhs).doubleValue();
+            case DIV:
+                return ((Number) lhs).doubleValue() / ((Number) rhs).doubleValue();
+            case EQ:
+                return equal(lhs, rhs);
+            case NEQ:
+                return !equal(lhs, rhs);
+            case GT:
+                return (((Number) lhs).doubleValue()) > (((Number) rhs).doubleValue());
+            case GTE:
+                return (((Number) lhs).doubleValue()) >= (((Number) rhs).doubleValue());
+            case LT:
+                return (((Number) lhs).doubleValue()) < (((Number) rhs).doubleValue());
+            case LTE:
+                return (((Number) lhs).doubleValue()) <= (((Number) rhs).doubleValue());
+            default:
+                throw new RuntimeError("interpret(expr, env)");
+        }
+    }
+
+    static final class Uninitialized extends BinaryNode {
+        Uninitialized(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            Object lhs = in.interpret(site.lhs, env);
+            Object rhs = in.interpret(site.rhs, env);
+            if (lhs instanceof Number && rhs instanceof Number)
+                site.node = doubles(site);
+            else if (site.o == Op.PLUS && lhs instanceof String && rhs instanceof String)
+                site.node = new Concat(site);
+            else
+                site.node = new Generic(site);
+            return generic(site.o, lhs, rhs);
+        }
+
+        private static BinaryNode doubles(BinaryExpr site) {
+            switch (site.o) {
+                case PLUS: return new AddDouble(site);
+                case MIN: return new SubDouble(site);
+                case MUL: return new MulDouble(site);
+                case DIV: return new DivDouble(site);
+                case EQ: return new EqDouble(site);
+                case NEQ: return new NeqDouble(site);
+                case GT: return new GtDouble(site);
+                case GTE: return new GteDouble(site);
+                case LT: return new LtDouble(site);
+                case LTE: return new LteDouble(site);
+                default: return new Generic(site);
+            }
+        }
+    }
+
+    /* || and && only evaluate the rhs when the lhs doesn't decide */
+    static final class Or extends BinaryNode {
+        Or(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            if ((Boolean) in.interpret(site.lhs, env))
+                return true;
+            return (Boolean) in.interpret(site.rhs, env);
+        }
+    }
+
+    static final class And extends BinaryNode {
+        And(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            if (!(Boolean) in.interpret(site.lhs, env))
+                return false;
+            return (Boolean) in.interpret(site.rhs, env);
+        }
+    }
+
+    static final class Generic extends BinaryNode {
+        Generic(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            Object lhs = in.interpret(site.lhs, env);
+            Object rhs = in.interpret(site.rhs, env);
+            return generic(site.o, lhs, rhs);
+        }
+    }
+
+    static final class Concat extends BinaryNode {
+        Concat(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            Object lhs = in.interpret(site.lhs, env);
+            Object rhs = in.interpret(site.rhs, env);
+            if (lhs instanceof String && rhs instanceof String)
+                return ((String) lhs).concat((String) rhs);
+            return miss(lhs, rhs);
+        }
+    }
+
+    static final class AddDouble extends BinaryNode {
+        AddDouble(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            return in.box(executeDouble(in, env));
+        }
+
+        double executeDouble(Interpreter in, Environment env) throws RuntimeError {
+            double lhs = in.num(site.lhs, env);
+            if (in.missed)
+                return in.unbox(missLhs(in, env, in.takeMissed()));
+            double rhs = in.num(site.rhs, env);
+            if (in.missed)
+                return in.unbox(miss(lhs, in.takeMissed()));
+            return lhs + rhs;
+        }
+    }
+
+    static final class SubDouble extends BinaryNode {
+        SubDouble(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            return in.box(executeDouble(in, env));
+        }
+
+        double executeDouble(Interpreter in, Environment env) throws RuntimeError {
+            double lhs = in.num(site.lhs, env);
+            if (in.missed)
+                return in.unbox(missLhs(in, env, in.takeMissed()));
+            double rhs = in.num(site.rhs, env);
+            if (in.missed)
+                return in.unbox(miss(lhs, in.takeMissed()));
+            return lhs - rhs;
+        }
+    }
+
+    static final class MulDouble extends BinaryNode {
+        MulDouble(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            return in.box(executeDouble(in, env));
+        }
+
+        double executeDouble(Interpreter in, Environment env) throws RuntimeError {
+            double lhs = in.num(site.lhs, env);
+            if (in.missed)
+                return in.unbox(missLhs(in, env, in.takeMissed()));
+            double rhs = in.num(site.rhs, env);
+            if (in.missed)
+                return in.unbox(miss(lhs, in.takeMissed()));
+            return lhs * rhs;
+        }
+    }
+
+    static final class DivDouble extends BinaryNode {
+        DivDouble(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            return in.box(executeDouble(in, env));
+        }
+
+        double executeDouble(Interpreter in, Environment env) throws RuntimeError {
+            double lhs = in.num(site.lhs, env);
+            if (in.missed)
+                return in.unbox(missLhs(in, env, in.takeMissed()));
+            double rhs = in.num(site.rhs, env);
+            if (in.missed)
+                return in.unbox(miss(lhs, in.takeMissed()));
+            return lhs / rhs;
+        }
+    }
+
+    static final class EqDouble extends BinaryNode {
+        EqDouble(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            double lhs = in.num(site.lhs, env);
+            if (in.missed)
+                return missLhs(in, env, in.takeMissed());
+            double rhs = in.num(site.rhs, env);
+            if (in.missed)
+                return miss(lhs, in.takeMissed());
+            return lhs == rhs;
+        }
+    }
+
+    static final class NeqDouble extends BinaryNode {
+        NeqDouble(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            double lhs = in.num(site.lhs, env);
+            if (in.missed)
+                return missLhs(in, env, in.takeMissed());
+            double rhs = in.num(site.rhs, env);
+            if (in.missed)
+                return miss(lhs, in.takeMissed());
+            return lhs != rhs;
+        }
+    }
+
+    static final class GtDouble extends BinaryNode {
+        GtDouble(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            double lhs = in.num(site.lhs, env);
+            if (in.missed)
+                return missLhs(in, env, in.takeMissed());
+            double rhs = in.num(site.rhs, env);
+            if (in.missed)
+                return miss(lhs, in.takeMissed());
+            return lhs > rhs;
+        }
+    }
+
+    static final class GteDouble extends BinaryNode {
+        GteDouble(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            double lhs = in.num(site.lhs, env);
+            if (in.missed)
+                return missLhs(in, env, in.takeMissed());
+            double rhs = in.num(site.rhs, env);
+            if (in.missed)
+                return miss(lhs, in.takeMissed());
+            return lhs >= rhs;
+        }
+    }
+
+    static final class LtDouble extends BinaryNode {
+        LtDouble(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            double lhs = in.num(site.lhs, env);
+            if (in.missed)
+                return missLhs(in, env, in.takeMissed());
+            double rhs = in.num(site.rhs, env);
+            if (in.missed)
+                return miss(lhs, in.takeMissed());
+            return lhs < rhs;
+        }
+    }
+
+    static final class LteDouble extends BinaryNode {
+        LteDouble(BinaryExpr site) { super(site); }
+
+        Object execute(Interpreter in, Environment env) throws RuntimeError {
+            double lhs = in.num(site.lhs, env);
+            if (in.missed)
+                return missLhs(in, env, in.takeMissed());
+            double rhs = in.num(site.rhs, env);
+            if (in.missed)
+                return miss(lhs, in.takeMissed());
+            return lhs <= rhs;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package me.vasan.jimple;
+
+/*
+ * Calls script functions for natives that take one, like bench(). Engine
+ * makes the Interpreter or VM running a script the current Caller of its
+ * thread for as long as it runs; a function value only means something
+ * to the kind of executor that made it, and the one running is the one
+ * whose functions the script can hand over.
+ */
+interface Caller {
+    ThreadLocal<Caller> CURRENT = new ThreadLocal<>();
+
+    /* Calls fn with args as a call in the script would, missing ones nil */
+    Object apply(Object fn, Object[] args) throws RuntimeError;
+
+    static Caller current() throws RuntimeError {
+        Caller c = CURRENT.get();
+        if (c == null)
+            throw new RuntimeError("no script is running on this thread");
+        return c;
+    }
+}
@@ -0,0 +1,505 @@
+package me.vasan.jimple;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Instruction set for the VM. Operands follow the opcode inline in
+ * Chunk.code; jump targets are absolute code offsets.
+ */
+final class OpCode {
+    static final int CONST = 0;       // k       push constants[k]
+    static final int NIL = 1;
+    static final int TRUE = 2;
+    static final int FALSE = 3;
+    static final int POP = 4;
+    static final int LOAD = 5;        // s       push slots[s]
+    static final int STORE = 6;       // s       slots[s] = top (value stays)
+    static final int LOAD_UP = 7;     // d s     push slot s of the d-th enclosing frame
+    static final int STORE_UP = 8;    // d s
+    static final int GET_GLOBAL = 9;  // k       push root[constants[k]]
+    static final int SET_GLOBAL = 10; // k       root.update(constants[k], top)
+    static final int DEF_GLOBAL = 11; // k       root.put(constants[k], pop)
+    static final int RESULT = 12;     //         completion value = pop
+    static final int ADD = 13;
+    static final int SUB = 14;
+    static final int MUL = 15;
+    static final int DIV = 16;
+    static final int EQ = 17;
+    static final int NEQ = 18;
+    static final int GT = 19;
+    static final int GTE = 20;
+    static final int LT = 21;
+    static final int LTE = 22;
+    static final int OR_ELSE = 23;    // t       jump if top is true, else pop
+    static final int AND_THEN = 24;   // t       jump if top is false, else pop
+    static final int NOT = 25;
+    static final int NEG = 26;
+    static final int JUMP = 27;       // t
+    static final int JUMP_FALSE = 28; // t       pop, jump if false
+    static final int CALL = 29;       // n       callee and n args on the stack
+    static final int RETURN = 30;     //         return the completion value (scripts)
+    static final int CLOSURE = 31;    // k       push Closure(constants[k], frame)
+    static final int OBJECT = 32;     // k n     ObjectTemplate in constants[k], n values on the stack
+    static final int GET_PROP = 33;   // k       PropertyCache in constants[k]
+    static final int RETURN_VALUE = 34; //       return pop
+    static final int JUMP_TRUE = 35;  // t       pop, jump if true
+    static final int TAIL_CALL = 36;  // n       return fn(n args), reusing this activation
+    static final int ARRAY = 37;      // n       n elements on the stack
+    static final int GET_INDEX = 38;  //         array, index on the stack
+    static final int SET_INDEX = 39;  //         array, index, value on the stack; the value stays
+
+    static final String[] NAMES = {
+        "CONST", "NIL", "TRUE", "FALSE", "POP", "LOAD", "STORE", "LOAD_UP", "STORE_UP",
+        "GET_GLOBAL", "SET_GLOBAL", "DEF_GLOBAL", "RESULT",
+        "ADD", "SUB", "MUL", "DIV", "EQ", "NEQ", "GT", "GTE", "LT", "LTE", "OR_ELSE", "AND_THEN",
+        "NOT", "NEG", "JUMP", "JUMP_FALSE", "CALL", "RETURN", "CLOSURE", "OBJECT", "GET_PROP",
+        "RETURN_VALUE", "JUMP_TRUE", "TAIL_CALL", "ARRAY", "GET_INDEX", "SET_INDEX"
+    };
+
+    static int operands(int op) {
+        switch (op) {
+            case LOAD_UP: case STORE_UP: case OBJECT: return 2;
+            case CONST: case LOAD: case STORE: case GET_GLOBAL: case SET_GLOBAL:
+            case DEF_GLOBAL: case JUMP: case JUMP_FALSE: case CALL: case CLOSURE:
+            case GET_PROP: case OR_ELSE: case AND_THEN: case JUMP_TRUE: case TAIL_CALL: case ARRAY: return 1;
+            default: return 0;
+        }
+    }
+
+    private OpCode() {}
+}
+
+/* Compiled form of a script or a function body */
+class Chunk {
+    final String name;
+    int[] code = new int[64];
+    int size = 0;
+    final List<Object> constants = new ArrayList<>();
+    Object[] pool;
+    int nparams;
+    int nslots;
+    int maxStack;
+    boolean captures; // creates closures, so its frames may outlive a call
+    FunctionExpr fe; // the function compiled, null for scripts
+    volatile Compiler.Pending pending; // set until a lazily parsed body is compiled
+
+    Chunk(String name) {
+        this.name = name;
+    }
+
+    int emit(int op) {
+        if (size == code.length)
+            code = Arrays.copyOf(code, size * 2);
+        code[size] = op;
+        return size++;
+    }
+
+    int constant(Object c) {
+        for (int i = 0; i < constants.size(); i++)
+            if (constants.get(i).equals(c) && constants.get(i).getClass() == c.getClass())
+                return i;
+        constants.add(c);
+        return constants.size() - 1;
+    }
+
+    void seal() {
+        code = Arrays.copyOf(code, size);
+        pool = constants.toArray();
+    }
+
+    /*
+     * Compiles a lazily parsed function the first time it is called.
+     * pending is cleared last, so a thread that sees it null sees the code.
+     */
+    synchronized void compile() throws SyntaxError {
+        if (pending != null) {
+            pending.compile(this);
+            pending = null;
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("== %s (params: %d, slots: %d, stack: %d) ==\n", name, nparams, nslots, maxStack));
+        for (int pc = 0; pc < size; ) {
+            int op = code[pc];
+            sb.append(String.format("%04d %-10s", pc, OpCode.NAMES[op]));
+            for (int i = 1; i <= OpCode.operands(op); i++)
+                sb.append(' ').append(code[pc + i]);
+            if (op == OpCode.CONST || op == OpCode.GET_GLOBAL || op == OpCode.SET_GLOBAL
+                    || op == OpCode.DEF_GLOBAL || op == OpCode.GET_PROP)
+                sb.append("  ; ").append(constants.get(code[pc + 1]));
+            sb.append('\n');
+            pc += 1 + OpCode.operands(op);
+        }
+        for (Object c: constants)
+            if (c instanceof Chunk)
+                sb.append(c.toString());
+        return sb.toString();
+    }
+}
+
+/*
+ * Compiles the resolved AST into Chunks for the VM. Frames are laid out as
+ * the Resolver laid them out for the interpreter, so every Id is loaded
+ * and stored through the (depth, slot) it was given; top-level `let`s and
+ * unresolved names (depth -1) go to the root Environment by name.
+ */
+public class Compiler {
+    private static class Loop {
+        final int top;
+        final List<Integer> breaks = new ArrayList<>();
+
+        Loop(int top) {
+            this.top = top;
+        }
+    }
+
+    /* The chunk being compiled */
+    private class FunctionScope {
+        final Chunk chunk;
+        final List<Loop> loops = new ArrayList<>();
+        int depth = 0; // current operand stack depth
+
+        FunctionScope(Chunk chunk) {
+            this.chunk = chunk;
+        }
+
+        boolean isScript() {
+            return chunk.fe == null;
+        }
+    }
+
+    private FunctionScope fn;
+
+    /* A function whose body isn't parsed yet, see Chunk.compile() */
+    final class Pending {
+        void compile(Chunk c) throws SyntaxError {
+            synchronized (Compiler.this) { // the chunks of one script share the compiler
+                FunctionScope saved = fn;
+                try {
+                    body(c);
+                } finally {
+                    fn = saved;
+                }
+            }
+        }
+    }
+
+    Chunk compile(Pgm ast) throws SyntaxError {
+        fn = new FunctionScope(new Chunk("<script>"));
+        fn.chunk.nslots = ast.nslots;
+        for (Decl d: ast.decls)
+            decl(d);
+        emit(OpCode.RETURN);
+        fn.chunk.seal();
+        return fn.chunk;
+    }
+
+    private void emit(int op, int... operands) {
+        fn.chunk.emit(op);
+        for (int o: operands)
+            fn.chunk.emit(o);
+        switch (op) {
+            case OpCode.CONST: case OpCode.NIL: case OpCode.TRUE: case OpCode.FALSE:
+            case OpCode.LOAD: case OpCode.LOAD_UP: case OpCode.GET_GLOBAL: case OpCode.CLOSURE:
+                stack(1); break;
+            case OpCode.POP: case OpCode.DEF_GLOBAL: case OpCode.RESULT: case OpCode.JUMP_FALSE:
+            case OpCode.RETURN_VALUE: case OpCode.JUMP_TRUE:
+            case OpCode.ADD: case OpCode.SUB: case OpCode.MUL: case OpCode.DIV:
+            case OpCode.EQ: case OpCode.NEQ: case OpCode.GT: case OpCode.GTE:
+            case OpCode.LT: case OpCode.LTE: case OpCode.GET_INDEX:
+                stack(-1); break;
+            case OpCode.SET_INDEX: stack(-2); break;
+            case OpCode.ARRAY: stack(1 - operands[0]); break;
+            case OpCode.CALL: stack(-operands[0]); break;
+            case OpCode.TAIL_CALL: stack(-operands[0] - 1); break;
+            case OpCode.OBJECT: stack(1 - operands[1]); break;
+            default: break;
+        }
+    }
+
+    private void stack(int delta) {
+        fn.depth += delta;
+        if (fn.depth > fn.chunk.maxStack)
+            fn.chunk.maxStack = fn.depth;
+    }
+
+    private int jump(int op) {
+        emit(op, -1);
+        return fn.chunk.size - 1;
+    }
+
+    private void patch(int at) {
+        fn.chunk.code[at] = fn.chunk.size;
+    }
+
+    /*
+     * Only scripts have a completion value; functions return through
+     * RETURN_VALUE, so statement values there are just dropped.
+     */
+    private void result() {
+        emit(fn.isScript() ? OpCode.RESULT : OpCode.POP);
+    }
+
+    private void result(int op) {
+        if (fn.isScript()) {
+            emit(op);
+            emit(OpCode.RESULT);
+        }
+    }
+
+    private void decl(Decl d) throws SyntaxError {
+        if (d.type == DeclType.VAR) {
+            Var v = d.var;
+            if (v.rvalue != null) expr(v.rvalue);
+            else emit(OpCode.NIL);
+            if (v.id.depth < 0) {
+                emit(OpCode.DEF_GLOBAL, fn.chunk.constant(v.id.name));
+            } else {
+                emit(OpCode.STORE, v.id.slot);
+                emit(OpCode.POP);
+            }
+            result(OpCode.NIL);
+        } else {
+            stmt(d.stmt);
+        }
+    }
+
+    /* In scripts every statement leaves its value in the completion register */
+    private void stmt(Stmt s) throws SyntaxError {
+        switch (s.type) {
+            case EXPR_STMT:
+                expr(s.e.e);
+                result();
+                break;
+            case IF_STMT: {
+                List<Integer> alt = jumpIfFalse(s.i.cond);
+                stmt(s.i.then);
+                int end = jump(OpCode.JUMP);
+                for (int at: alt)
+                    patch(at);
+                if (s.i.alt != null) {
+                    stmt(s.i.alt);
+                } else {
+                    result(OpCode.FALSE);
+                }
+                patch(end);
+                break;
+            }
+            case WHILE_STMT: {
+                result(OpCode.NIL);
+                Loop loop = new Loop(fn.chunk.size);
+                List<Integer> exit = jumpIfFalse(s.w.cond);
+                fn.loops.add(loop);
+                stmt(s.w.then);
+                fn.loops.remove(fn.loops.size() - 1);
+                emit(OpCode.JUMP, loop.top);
+                for (int at: exit)
+                    patch(at);
+                for (int at: loop.breaks)
+                    patch(at);
+                break;
+            }
+            case RETURN_STMT:
+                if (s.r.expr != null && s.r.expr.type == ExprType.CALL && s.r.expr.ce.tail) {
+                    CallExpr ce = s.r.expr.ce;
+                    load(ce.id);
+                    for (Expr arg: ce.a)
+                        expr(arg);
+                    emit(OpCode.TAIL_CALL, ce.a.size());
+                    break;
+                }
+                if (s.r.expr != null) expr(s.r.expr);
+                else emit(OpCode.NIL);
+                emit(OpCode.RETURN_VALUE);
+                break;
+            case BREAK_STMT: // the body was cut short, so it completes with nil, as in Interpreter
+                result(OpCode.NIL);
+                fn.loops.get(fn.loops.size() - 1).breaks.add(jump(OpCode.JUMP));
+                break;
+            case CONTINUE_STMT:
+                result(OpCode.NIL);
+                emit(OpCode.JUMP, fn.loops.get(fn.loops.size() - 1).top);
+                break;
+            case BLOCK_STMT:
+                if (s.b.decls.isEmpty()) {
+                    result(OpCode.NIL);
+                }
+                for (Decl d: s.b.decls)
+                    decl(d);
+                break;
+            default:
+                throw new SyntaxError("compile(stmt)");
+        }
+    }
+
+    /*
+     * Branches on a condition without materializing || and && results:
+     * returns the jumps to patch to the false target, and falls through
+     * when the condition holds.
+     */
+    private List<Integer> jumpIfFalse(Expr cond) throws SyntaxError {
+        List<Integer> exits = new ArrayList<>();
+        if (cond.type == ExprType.BINARY_EXPR && cond.b.o == Op.LAN) {
+            exits.addAll(jumpIfFalse(cond.b.lhs));
+            exits.addAll(jumpIfFalse(cond.b.rhs));
+        } else if (cond.type == ExprType.BINARY_EXPR && cond.b.o == Op.LOR) {
+            List<Integer> trues = jumpIfTrue(cond.b.lhs);
+            exits.addAll(jumpIfFalse(cond.b.rhs));
+            for (int at: trues)
+                patch(at);
+        } else {
+            expr(cond);
+            exits.add(jump(OpCode.JUMP_FALSE));
+        }
+        return exits;
+    }
+
+    private List<Integer> jumpIfTrue(Expr cond) throws SyntaxError {
+        List<Integer> taken = new ArrayList<>();
+        if (cond.type == ExprType.BINARY_EXPR && cond.b.o == Op.LOR) {
+            taken.addAll(jumpIfTrue(cond.b.lhs));
+            taken.addAll(jumpIfTrue(cond.b.rhs));
+        } else if (cond.type == ExprType.BINARY_EXPR && cond.b.o == Op.LAN) {
+            List<Integer> falses = jumpIfFalse(cond.b.lhs);
+            taken.addAll(jumpIfTrue(cond.b.rhs));
+            for (int at: falses)
+                patch(at);
+        } else {
+            expr(cond);
+            taken.add(jump(OpCode.JUMP_TRUE));
+        }
+        return taken;
+    }
+
+    private void load(Id id) {
+        if (id.depth < 0) emit(OpCode.GET_GLOBAL, fn.chunk.constant(id.name));
+        else if (id.depth == 0) emit(OpCode.LOAD, id.slot);
+        else emit(OpCode.LOAD_UP, id.depth, id.slot);
+    }
+
+    private void store(Id id) {
+        if (id.depth < 0) emit(OpCode.SET_GLOBAL, fn.chunk.constant(id.name));
+        else if (id.depth == 0) emit(OpCode.STORE, id.slot);
+        else emit(OpCode.STORE_UP, id.depth, id.slot);
+    }
+
+    private void expr(Expr e) throws SyntaxError {
+        switch (e.type) {
+            case PRIMARY:
+                switch (e.pe.type) {
+                    case NUM: emit(OpCode.CONST, fn.chunk.constant(e.pe.num)); break;
+                    case STR: emit(OpCode.CONST, fn.chunk.constant(e.pe.str)); break;
+                    case B: emit(e.pe.b ? OpCode.TRUE : OpCode.FALSE); break;
+                    case NIL: emit(OpCode.NIL); break;
+                    case ID: load(e.pe.id); break;
+                }
+                break;
+            case BINARY_EXPR:
+                expr(e.b.lhs);
+                if (e.b.o == Op.LOR || e.b.o == Op.LAN) {
+                    int end = jump(e.b.o == Op.LOR ? OpCode.OR_ELSE : OpCode.AND_THEN);
+                    stack(-1);
+                    expr(e.b.rhs);
+                    patch(end);
+                    break;
+                }
+                expr(e.b.rhs);
+                emit(binaryOp(e.b.o));
+                break;
+            case UNARY:
+                expr(e.ue.e);
+                if (e.ue.o == Op.NEG) emit(OpCode.NEG);
+                else if (e.ue.o == Op.NOT) emit(OpCode.NOT);
+                else throw new SyntaxError("compile(unary)");
+                break;
+            case CALL: {
+                load(e.ce.id);
+                for (Expr arg: e.ce.a)
+                    expr(arg);
+                emit(OpCode.CALL, e.ce.a.size());
+                break;
+            }
+            case FUNCTION:
+                emit(OpCode.CLOSURE, fn.chunk.constant(function(e.fe)));
+                break;
+            case ASSIGN_EXPR:
+                expr(e.a.e);
+                store(e.a.id);
+                break;
+            case OBJECT: {
+                for (Expr v: e.oe.values)
+                    expr(v);
+                fn.chunk.constants.add(e.oe.template);
+                emit(OpCode.OBJECT, fn.chunk.constants.size() - 1, e.oe.values.size());
+                break;
+            }
+            case PROPERTY_ACCESS:
+                expr(e.pae.object);
+                fn.chunk.constants.add(e.pae.cache);
+                emit(OpCode.GET_PROP, fn.chunk.constants.size() - 1);
+                break;
+            case ARRAY:
+                for (Expr v: e.ae.values)
+                    expr(v);
+                emit(OpCode.ARRAY, e.ae.values.size());
+                break;
+            case INDEX:
+                expr(e.ie.array);
+                expr(e.ie.index);
+                emit(OpCode.GET_INDEX);
+                break;
+            case INDEX_ASSIGN:
+                expr(e.iae.array);
+                expr(e.iae.index);
+                expr(e.iae.e);
+                emit(OpCode.SET_INDEX);
+                break;
+            default:
+                throw new SyntaxError("compile(expr)");
+        }
+    }
+
+    private Chunk function(FunctionExpr fe) throws SyntaxError {
+        Chunk c = new Chunk("<function>");
+        c.nparams = fe.a.size();
+        c.fe = fe;
+        if (fe.b == null)
+            c.pending = new Pending();
+        else
+            body(c);
+        return c;
+    }
+
+    private void body(Chunk c) throws SyntaxError {
+        FunctionScope outer = fn;
+        fn = new FunctionScope(c);
+        Stmt body = c.fe.body(); // resolved, so fe.nslots is set
+        c.nslots = c.fe.nslots;
+        c.captures = c.fe.captures;
+        stmt(body);
+        emit(OpCode.NIL);
+        emit(OpCode.RETURN_VALUE);
+        c.seal();
+        fn = outer;
+    }
+
+    private static int binaryOp(Op o) throws SyntaxError {
+        switch (o) {
+            case PLUS: return OpCode.ADD;
+            case MIN: return OpCode.SUB;
+            case MUL: return OpCode.MUL;
+            case DIV: return OpCode.DIV;
+            case EQ: return OpCode.EQ;
+            case NEQ: return OpCode.NEQ;
+            case GT: return OpCode.GT;
+            case GTE: return OpCode.GTE;
+            case LT: return OpCode.LT;
+            case LTE: return OpCode.LTE;
+            default: throw new SyntaxError("compile(binary)");
+        }
+    }
+}
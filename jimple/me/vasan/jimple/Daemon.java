@@ -0,0 +1,169 @@
+package me.vasan.jimple;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/*
+ * `jimple --serve [socket]` keeps a warm JVM running scripts for
+ * JimpleClient, so a job pays for neither JVM startup nor interpreting
+ * cold code. Clients connect over a Unix domain socket (-DJimpleSocket,
+ * default $TMPDIR/jimple-$USER.sock, readable by its owner only) and send
+ * a RUN frame naming a script. The daemon runs it in a fresh root
+ * Environment, streams back what it prints in OUT and ERR frames, and
+ * ends with an EXIT frame holding the exit status. A STOP frame shuts
+ * the daemon down.
+ *
+ * A frame is a kind byte, an int length and that many bytes. Requests
+ * are run one at a time. -DDaemonDebug=1 logs each one with its latency.
+ *
+ * The client sends the script's absolute path, but nothing else about
+ * where it runs: relative paths the script opens resolve against the
+ * daemon's working directory.
+ */
+final class Daemon {
+    static final byte RUN = 'R', STOP = 'S', OUT = 'O', ERR = 'E', EXIT = 'X';
+    static final String SOCKET = System.getProperty("JimpleSocket",
+        Paths.get(System.getProperty("java.io.tmpdir"), "jimple-" + System.getProperty("user.name") + ".sock").toString());
+    private static final int MAX_REQUEST = 1 << 16;
+    private static final int FRAME = 8192; // output is sent in frames of up to this many bytes
+    private static final boolean DEBUG = "1".equals(System.getProperty("DaemonDebug"));
+
+    private final Path socket;
+    private final Engine interpreter = new Engine(false), bytecode = new Engine(true);
+
+    Daemon(String socket) {
+        this.socket = Paths.get(socket);
+    }
+
+    void serve() throws IOException {
+        Files.deleteIfExists(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            try {
+                Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                /* not a POSIX file system; the directory's permissions apply */
+            }
+            System.err.println("jimple: serving on " + socket);
+            boolean running = true;
+            while (running) {
+                try (SocketChannel client = server.accept()) {
+                    running = handle(client);
+                } catch (IOException e) {
+                    System.err.println("jimple: " + e.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    /* Runs one request; false if it was STOP */
+    private boolean handle(SocketChannel client) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(5);
+        if (!read(client, head))
+            return true;
+        byte kind = head.get(0);
+        int length = head.getInt(1);
+        if (kind == STOP)
+            return false;
+        if (kind != RUN || length < 1 || length > MAX_REQUEST)
+            throw new IOException("bad request");
+        ByteBuffer body = ByteBuffer.allocate(length);
+        if (!read(client, body))
+            throw new IOException("truncated request");
+        boolean vm = body.get(0) != 0;
+        String path = new String(body.array(), 1, length - 1, StandardCharsets.UTF_8);
+
+        long start = System.nanoTime();
+        Charset charset = Charset.defaultCharset();
+        Output out = new Output(new Frames(client, OUT), charset);
+        PrintStream err = new PrintStream(new Frames(client, ERR), false, charset);
+        int status;
+        try {
+            status = Jimple.runFile(path, new Environment(out), vm ? bytecode : interpreter, err);
+        } catch (IOException e) {
+            err.println("jimple: can't read " + path + ": " + e.getMessage());
+            status = 66;
+        } catch (RuntimeException | StackOverflowError e) {
+            e.printStackTrace(err);
+            status = 70;
+        }
+        out.flush();
+        err.flush();
+        byte[] exit = ByteBuffer.allocate(4).putInt(status).array();
+        send(client, EXIT, exit, 0, exit.length);
+        if (DEBUG)
+            System.err.printf("jimple: %s%s -> %d in %.2f ms%n", vm ? "--vm " : "", path, status, (System.nanoTime() - start) / 1e6);
+        return true;
+    }
+
+    /* Fills buf; false if the peer hung up before sending anything */
+    static boolean read(SocketChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf) < 0) {
+                if (buf.position() == 0)
+                    return false;
+                throw new IOException("connection closed mid-frame");
+            }
+        }
+        return true;
+    }
+
+    static void send(SocketChannel ch, byte kind, byte[] b, int off, int len) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(5).put(kind).putInt(len).flip();
+        ByteBuffer body = ByteBuffer.wrap(b, off, len);
+        while (head.hasRemaining() || body.hasRemaining())
+            ch.write(new ByteBuffer[] { head, body });
+    }
+
+    /* A script's output, sent to the client as frames of one kind */
+    private static final class Frames extends OutputStream {
+        private final SocketChannel ch;
+        private final byte kind;
+        private final byte[] buf = new byte[FRAME];
+        private int n = 0;
+
+        Frames(SocketChannel ch, byte kind) {
+            this.ch = ch;
+            this.kind = kind;
+        }
+
+        public void write(int b) throws IOException {
+            if (n == buf.length)
+                flush();
+            buf[n++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (n == buf.length)
+                    flush();
+                int k = Math.min(len, buf.length - n);
+                System.arraycopy(b, off, buf, n, k);
+                n += k;
+                off += k;
+                len -= k;
+            }
+        }
+
+        public void flush() throws IOException {
+            if (n > 0) {
+                send(ch, kind, buf, 0, n);
+                n = 0;
+            }
+        }
+    }
+}
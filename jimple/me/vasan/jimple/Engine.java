@@ -0,0 +1,153 @@
+package me.vasan.jimple;
+
+import java.io.PrintStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Embedding API. compile() turns source into a Script, which is never
+ * changed by running it, so one Script can be run by any number of
+ * threads at once. Every run() gets a fresh root Environment: runs share
+ * nothing but the Script and the caches inside it, which are safe to
+ * race on (PropertyCache, BinaryNode sites, ObjectTemplate, Shape
+ * transitions), plus lazily parsed bodies and JIT compiles, which happen
+ * once under a lock.
+ *
+ * submit() runs a Script on the engine's executor: a virtual thread per
+ * run where the JDK has them, else a pool with a thread per core.
+ *
+ * A script that doesn't compile throws SyntaxError, one that fails while
+ * running RuntimeError; both are public, for hosts to catch.
+ */
+public final class Engine implements AutoCloseable {
+    /* A compiled program, shareable between threads */
+    public static final class Script {
+        final Pgm ast;
+        final Chunk chunk; // null unless compiled for the VM
+        final boolean sawError; // the scanner reported errors but went on
+
+        Script(Pgm ast, Chunk chunk, boolean sawError) {
+            this.ast = ast;
+            this.chunk = chunk;
+            this.sawError = sawError;
+        }
+    }
+
+    private static final boolean VM_DEBUG = "1".equals(System.getProperty("VMDebug"));
+
+    private final boolean vm;
+    private ExecutorService executor; // created by the first submit()
+
+    public Engine() {
+        this(false);
+    }
+
+    public Engine(boolean vm) {
+        this.vm = vm;
+    }
+
+    /* An engine whose submit() runs on executor, which close() shuts down */
+    public Engine(boolean vm, ExecutorService executor) {
+        this.vm = vm;
+        this.executor = executor;
+    }
+
+    /* Parses source, reporting errors to err; input is scanned as the parser goes */
+    public Script compile(CharSequence source, PrintStream err) throws SyntaxError {
+        return compile(new Scanner(source, err));
+    }
+
+    Script compile(Scanner scanner) throws SyntaxError {
+        Pgm ast = new Optimizer().optimize(new Parser(scanner).parse());
+        new Resolver().resolve(ast);
+        return script(ast, scanner.sawError);
+    }
+
+    /* A Script for a program that is already resolved, e.g. one from ScriptCache */
+    Script script(Pgm ast, boolean sawError) throws SyntaxError {
+        Chunk chunk = null;
+        if (vm) {
+            chunk = new Compiler().compile(ast);
+            if (VM_DEBUG)
+                System.out.print(chunk);
+        }
+        return new Script(ast, chunk, sawError);
+    }
+
+    /* Runs script in a new root Environment that prints to out; its value */
+    public Object run(Script script, PrintStream out) throws RuntimeError {
+        return run(script, new Output(out, Charset.defaultCharset()));
+    }
+
+    /* Runs script in a new root Environment that prints to out, e.g. a FileChannel */
+    public Object run(Script script, WritableByteChannel out) throws RuntimeError {
+        return run(script, new Output(out, Charset.defaultCharset()));
+    }
+
+    private Object run(Script script, Output out) throws RuntimeError {
+        try {
+            return run(script, new Environment(out));
+        } finally {
+            out.flush();
+        }
+    }
+
+    /* Runs script with root as its globals */
+    Object run(Script script, Environment root) throws RuntimeError {
+        Caller outer = Caller.CURRENT.get();
+        try {
+            if (script.chunk != null) {
+                VM vm = new VM(root);
+                Caller.CURRENT.set(vm);
+                return vm.run(script.chunk);
+            }
+            Interpreter interpreter = new Interpreter(root);
+            Caller.CURRENT.set(interpreter);
+            return interpreter.interpret(script.ast);
+        } finally {
+            Caller.CURRENT.set(outer);
+        }
+    }
+
+    /* Runs script on the executor; a RuntimeError completes the future exceptionally */
+    public CompletableFuture<Object> submit(Script script, PrintStream out) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return run(script, out);
+            } catch (RuntimeError e) {
+                throw new CompletionException(e);
+            }
+        }, executor());
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null)
+            executor = newExecutor();
+        return executor;
+    }
+
+    /*
+     * Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively,
+     * so the engine still builds and runs on JDKs before 21.
+     */
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "jimple-engine");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public synchronized void close() {
+        if (executor != null)
+            executor.shutdown();
+    }
+}
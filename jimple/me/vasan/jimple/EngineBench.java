@@ -0,0 +1,78 @@
+package me.vasan.jimple;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Engine throughput: usage `EngineBench [--vm] [runs] [tasks]` (default
+ * 2000 runs, 10000 tasks). One Script is compiled and then run `runs`
+ * times on fixed pools of 1, 2, 4, ... threads up to the number of cores,
+ * reporting executions/s for each, and finally `tasks` runs are submitted
+ * at once to the engine's own executor (virtual threads on JDK 21+). Each
+ * run builds objects and calls a recursive function in its own root
+ * Environment; what it prints is discarded.
+ */
+public class EngineBench {
+    static final String SCRIPT = String.join("\n",
+        "let fib = function(n) { if (n < 2) { return n; } return fib(n - 1) + fib(n - 2); };",
+        "let total = 0;",
+        "let i = 0;",
+        "while (i < 200) {",
+        "    let p = { x: i, y: i * 2, name: \"point\" };",
+        "    total = total + p.x + p.y;",
+        "    i = i + 1;",
+        "}",
+        "print(total);",
+        "fib(15) + total;",
+        "");
+
+    public static void main(String[] args) throws Exception {
+        boolean vm = args.length > 0 && args[0].equals("--vm");
+        if (vm)
+            args = java.util.Arrays.copyOfRange(args, 1, args.length);
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int tasks = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+
+        Engine engine = new Engine(vm);
+        Engine.Script script = engine.compile(SCRIPT, System.err);
+        Object expected = engine.run(script, out);
+        System.out.printf("%s, %d cores, each run returns %s%n", vm ? "vm" : "interpreter", cores, expected);
+
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try (Engine e = new Engine(vm, pool)) {
+                time(e, script, out, runs, expected); // warm up
+                double secs = time(e, script, out, runs, expected);
+                System.out.printf("%3d threads: %9.0f runs/s%n", threads, runs / secs);
+            }
+            if (threads == cores)
+                break;
+        }
+
+        try (Engine e = new Engine(vm)) {
+            time(e, script, out, tasks, expected);
+            double secs = time(e, script, out, tasks, expected);
+            System.out.printf("%d tasks at once: %9.0f runs/s%n", tasks, tasks / secs);
+        }
+    }
+
+    /* Submits n runs and waits for them all; seconds taken */
+    private static double time(Engine e, Engine.Script script, PrintStream out, int n, Object expected) throws Exception {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Object>[] runs = (CompletableFuture<Object>[]) new CompletableFuture<?>[n];
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++)
+            runs[i] = e.submit(script, out);
+        CompletableFuture.allOf(runs).join();
+        double secs = (System.nanoTime() - start) / 1e9;
+        for (CompletableFuture<Object> r: runs)
+            if (!expected.equals(r.get()))
+                throw new IllegalStateException("a run returned " + r.get() + ", not " + expected);
+        return secs;
+    }
+}
@@ -1,54 +1,172 @@
 package me.vasan.jimple;
 
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.List;
 
+/*
+ * The root Environment holds globals by name, see Globals. Every other
+ * Environment is a frame: an array of slots addressed by the (depth, slot)
+ * pairs the Resolver assigns.
+ *
+ * Each execution has its own root, and the AST is shared between them, so
+ * a global Id can't cache its binding. Instead each Id carries its name's
+ * id in the Symbols of the script it was parsed from, and each root keeps
+ * the cells it has looked up in an array under those ids: finding a
+ * global writes nothing another execution can see. The ids are numbered
+ * per script, so a root's array is only as long as the scripts it runs
+ * have names, however many scripts the process has seen. A function from
+ * another script (handed over between JSR-223 evals, say) can find its
+ * index holding a different name; the entry records the name it was
+ * found under, so the Id then looks its own up and takes the slot.
+ */
 class Environment {
-    private Hashtable<String, Object> entries;
+    /* marks a slot whose value lives unboxed in nums */
+    static final Object UNBOXED = new Object();
+
+    /*
+     * A global binding. Cells are never removed or replaced, so an Id can
+     * hold on to its cell and see every later assignment.
+     */
+    static final class Cell {
+        Object value;
+
+        Cell(Object value) {
+            this.value = value;
+        }
+    }
+
+    /* A cell a root has found, and the Id name it found it under */
+    private static final class Found {
+        final String name;
+        final Cell cell;
+
+        Found(String name, Cell cell) {
+            this.name = name;
+            this.cell = cell;
+        }
+    }
+
+    private final Globals entries;
+    private Found[] cells; // on the root: cells found so far, by Id.global
+    final Object[] slots;
+    double[] nums;
     Environment parent;
+    final Environment root;
+    final Output out; // where print writes, on the root
 
     Environment() {
-        entries = new Hashtable<String, Object>();
+        this(Output.stdout());
+    }
+
+    Environment(Output out) {
+        this(out, false);
+    }
+
+    /* A root; shared if functions defined in it may run on several threads */
+    Environment(Output out, boolean shared) {
+        entries = shared ? new Globals.Shared() : new Globals.Table();
+        cells = new Found[32]; // the keywords take the first ids
+        this.slots = null;
         this.parent = null;
+        this.root = this;
+        this.out = out;
         initRootEnv();
     }
 
-    Environment(Environment parent) {
-        entries = new Hashtable<String, Object>();
+    Environment(int size, Environment parent) {
+        this.slots = new Object[size];
         this.parent = parent;
+        this.root = parent.root;
+        this.out = null;
+        this.entries = null;
     }
 
-    /*
-     * Add interop with native functions?
-     */
     void initRootEnv() {
-        entries.put("print", new NativeFunction("print"));
-        entries.put("clock", new NativeFunction("clock"));
+        Natives.define(this);
+    }
+
+    Environment ancestor(int depth) {
+        Environment env = this;
+        for (int i = 0; i < depth; i++)
+            env = env.parent;
+        return env;
+    }
+
+    Object get(Id id) {
+        if (id.depth < 0) {
+            Cell c = root.cell(id);
+            return c != null ? c.value : root.get(id.name);
+        }
+        return ancestor(id.depth).load(id.slot);
+    }
+
+    void set(Id id, Object val) {
+        if (id.depth < 0) {
+            Cell c = root.cell(id);
+            if (c != null) c.value = val;
+            else root.update(id.name, val);
+        } else {
+            ancestor(id.depth).slots[id.slot] = val;
+        }
+    }
+
+    /* Only on the root: the cell for a global Id, or null if it isn't defined yet */
+    Cell cell(Id id) {
+        int g = id.global;
+        if (g < 0)
+            return entries.get(id.name);
+        Found[] found = cells;
+        if (g < found.length) {
+            Found f = found[g];
+            if (f != null && f.name == id.name) // one String per name within a script
+                return f.cell;
+        }
+        Cell c = entries.get(id.name);
+        if (c != null) {
+            if (g >= found.length)
+                cells = found = Arrays.copyOf(found, Math.max(g + 1, found.length * 2));
+            found[g] = new Found(id.name, c);
+        }
+        return c;
+    }
+
+    Object load(int slot) {
+        Object val = slots[slot];
+        if (val == UNBOXED)
+            return nums[slot];
+        return val;
+    }
+
+    void storeDouble(int slot, double val) {
+        if (nums == null)
+            nums = new double[slots.length];
+        slots[slot] = UNBOXED;
+        nums[slot] = val;
+    }
+
+    /* Only on the root: the names of the globals defined so far */
+    List<String> names() {
+        return entries.names();
     }
 
     boolean exists(String key) {
-        return entries.containsKey(key);
+        return entries.get(key) != null;
     }
 
     void put(String key, Object val) {
         // TODO: const checks can happen here
-        // TODO: global updates can happen here
         entries.put(key, val);
     }
 
+    /* Only on the root, which has no parent to look in */
     void update(String key, Object val) {
-        if (exists(key))
-            entries.put(key, val);
-        else
-            if (this.parent != null && this.parent.exists(key))
-                this.parent.put(key, val);
-            else 
-                entries.put(key, val);
+        entries.put(key, val);
     }
 
     Object get(String key) {
-        Object val = entries.get(key);
-        if (val == null)
+        Cell c = entries.get(key);
+        if (c == null)
             return this.parent.get(key);
-        return val;
+        return c.value;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,309 @@
+package me.vasan.jimple;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/* Something next() steps through; null at the end, and from then on */
+interface ScriptIterator {
+    Object next() throws RuntimeError;
+}
+
+/*
+ * File natives, registered by Natives:
+ *
+ *   open(path)          a file for reading
+ *   read(f)             the rest of f as a string (f may also be a path)
+ *   read(f, n)          the text in up to n more bytes of f, nil at the end
+ *   close(f)
+ *   lines(f)            an iterator over the lines of f from where it is
+ *                       (or of a path)
+ *   getdirentries(dir)  an iterator over the names in dir
+ *   next(it)            the next item, nil at the end
+ *
+ * Files are read through FileChannel.map. lines() maps the file a window
+ * at a time and finds line ends in the mapped bytes; a line only becomes
+ * a String when next() returns it, so a file of any size is streamed in
+ * the memory of a window and its longest line. Lines taken from a handle
+ * move it on, so read(f) after them goes on from the next line.
+ *
+ * Relative paths are resolved against the JVM's working directory. Under
+ * --serve that is the directory the daemon was started in, not the
+ * client's; scripts run that way should use absolute paths.
+ */
+final class FileLib {
+    private static final int WINDOW = Integer.getInteger("LinesWindow", 64 << 20);
+
+    private FileLib() {}
+
+    static final class FileHandle {
+        final String path;
+        final FileChannel ch;
+        long position = 0; // where read() goes on from
+        private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private ByteBuffer carry = ByteBuffer.allocate(0); // a character the last read() cut in two
+
+        FileHandle(String path, FileChannel ch) {
+            this.path = path;
+            this.ch = ch;
+        }
+
+        /*
+         * Bytes read after the last read() as text. A character cut off at
+         * the end of them is carried over to the next call, unless they
+         * end the file.
+         */
+        String decode(byte[] bytes, boolean end) {
+            ByteBuffer in = ByteBuffer.allocate(carry.remaining() + bytes.length);
+            in.put(carry).put(bytes).flip();
+            CharBuffer out = CharBuffer.allocate((int) (in.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+            decoder.decode(in, out, end);
+            if (end) {
+                decoder.flush(out);
+                decoder.reset();
+            }
+            carry = in;
+            return out.flip().toString();
+        }
+
+        /* Where the next byte of text starts, taking back any carried over */
+        long resume() {
+            position -= carry.remaining();
+            carry = ByteBuffer.allocate(0);
+            decoder.reset();
+            return position;
+        }
+
+        public String toString() {
+            return "<file " + path + ">";
+        }
+    }
+
+    static Object open(Object path) throws RuntimeError {
+        String p = path(path, "open");
+        return new FileHandle(p, channel(p, "open"));
+    }
+
+    static Object close(Object f) throws RuntimeError {
+        try {
+            handle(f, "close").ch.close();
+        } catch (IOException e) {
+            throw new RuntimeError("close: " + e.getMessage());
+        }
+        return null;
+    }
+
+    static Object read(Object[] args) throws RuntimeError {
+        if (args.length == 0 || args.length > 2)
+            throw new RuntimeError("read: expects a file and an optional byte count");
+        FileHandle f = args[0] instanceof String ? null : handle(args[0], "read");
+        FileChannel ch = f != null ? f.ch : channel(path(args[0], "read"), "read");
+        try {
+            long from = f != null ? f.position : 0;
+            long left = Math.max(ch.size() - from, 0);
+            if (args.length == 2) {
+                if (!(args[1] instanceof Number))
+                    throw new RuntimeError("read: byte count must be a number");
+                if (left == 0)
+                    return null;
+                left = Math.min(left, Math.max(((Number) args[1]).longValue(), 0));
+            }
+            if (left > Integer.MAX_VALUE - 8)
+                throw new RuntimeError("read: " + (f != null ? f.path : args[0]) + " is too large to read at once; use lines()");
+            byte[] bytes = new byte[(int) left];
+            if (left > 0)
+                ch.map(FileChannel.MapMode.READ_ONLY, from, left).get(bytes);
+            if (f == null)
+                return new String(bytes, Charset.defaultCharset());
+            f.position = from + left;
+            return f.decode(bytes, f.position >= ch.size());
+        } catch (IOException e) {
+            throw new RuntimeError("read: " + e.getMessage());
+        } finally {
+            if (f == null)
+                closeQuietly(ch);
+        }
+    }
+
+    static Object lines(Object f) throws RuntimeError {
+        if (f instanceof String)
+            return new Lines(channel((String) f, "lines"), null);
+        FileHandle h = handle(f, "lines");
+        return new Lines(h.ch, h);
+    }
+
+    static Object getdirentries(Object dir) throws RuntimeError {
+        String p = path(dir, "getdirentries");
+        try {
+            return new Entries(Files.newDirectoryStream(Paths.get(p)));
+        } catch (IOException e) {
+            throw new RuntimeError("getdirentries: can't list " + p + ": " + e.getMessage());
+        }
+    }
+
+    static Object next(Object it) throws RuntimeError {
+        if (!(it instanceof ScriptIterator))
+            throw new RuntimeError("next: not an iterator");
+        return ((ScriptIterator) it).next();
+    }
+
+    /* The lines of a file, found in a window of it mapped at a time */
+    private static final class Lines implements ScriptIterator {
+        private final FileChannel ch;
+        private final FileHandle handle; // moved on past each line; null if ch was opened for this iterator
+        private final Charset charset = Charset.defaultCharset();
+        private MappedByteBuffer map;
+        private long base; // file offset of map's first byte, or where to start before it is mapped
+        private int pos = 0; // start of the next line in map
+        private int window = WINDOW;
+        private byte[] line = new byte[256];
+        private boolean done = false;
+
+        Lines(FileChannel ch, FileHandle handle) {
+            this.ch = ch;
+            this.handle = handle;
+            this.base = handle != null ? handle.resume() : 0;
+        }
+
+        public Object next() throws RuntimeError {
+            if (done)
+                return null;
+            try {
+                long size = ch.size();
+                while (true) {
+                    if (map == null || pos == map.limit()) {
+                        long at = base + pos;
+                        if (at >= size)
+                            return finish();
+                        map(at, size);
+                    }
+                    int limit = map.limit();
+                    for (int i = pos; i < limit; i++) {
+                        if (map.get(i) == '\n') {
+                            String s = decode(pos, i);
+                            moveTo(i + 1);
+                            return s;
+                        }
+                    }
+                    if (base + limit >= size) { // the last line has no newline
+                        String s = decode(pos, limit);
+                        moveTo(limit);
+                        return s;
+                    }
+                    /* the line runs past the window: map again from its start, larger if it fills it */
+                    if (pos == 0)
+                        window = (int) Math.min((long) window * 2, Integer.MAX_VALUE - 8);
+                    map(base + pos, size);
+                }
+            } catch (IOException e) {
+                finish();
+                throw new RuntimeError("next: " + e.getMessage());
+            }
+        }
+
+        private void moveTo(int next) {
+            pos = next;
+            if (handle != null)
+                handle.position = base + pos;
+        }
+
+        private void map(long at, long size) throws IOException {
+            map = ch.map(FileChannel.MapMode.READ_ONLY, at, Math.min(window, size - at));
+            base = at;
+            pos = 0;
+        }
+
+        /* The line in map[from, to), without its '\r' if it ended in "\r\n" */
+        private String decode(int from, int to) {
+            if (to > from && map.get(to - 1) == '\r')
+                to--;
+            int n = to - from;
+            if (n > line.length)
+                line = new byte[Math.max(n, line.length * 2)];
+            map.get(from, line, 0, n);
+            return new String(line, 0, n, charset);
+        }
+
+        private Object finish() {
+            done = true;
+            map = null;
+            if (handle == null)
+                closeQuietly(ch);
+            return null;
+        }
+    }
+
+    /* The names in a directory, in the order the file system lists them */
+    private static final class Entries implements ScriptIterator {
+        private final DirectoryStream<Path> stream;
+        private final Iterator<Path> it;
+        private boolean done = false;
+
+        Entries(DirectoryStream<Path> stream) {
+            this.stream = stream;
+            this.it = stream.iterator();
+        }
+
+        public Object next() throws RuntimeError {
+            if (done)
+                return null;
+            try {
+                if (it.hasNext())
+                    return it.next().getFileName().toString();
+            } catch (RuntimeException e) { // DirectoryIteratorException
+                throw new RuntimeError("next: " + e.getMessage());
+            }
+            done = true;
+            try {
+                stream.close();
+            } catch (IOException e) {
+                /* nothing more to read from it anyway */
+            }
+            return null;
+        }
+    }
+
+    private static String path(Object p, String fn) throws RuntimeError {
+        if (!(p instanceof String))
+            throw new RuntimeError(fn + ": path must be a string");
+        return (String) p;
+    }
+
+    private static FileHandle handle(Object f, String fn) throws RuntimeError {
+        if (!(f instanceof FileHandle))
+            throw new RuntimeError(fn + ": not a file");
+        return (FileHandle) f;
+    }
+
+    private static FileChannel channel(String path, String fn) throws RuntimeError {
+        try {
+            return FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new RuntimeError(fn + ": no such file: " + path);
+        } catch (IOException e) {
+            throw new RuntimeError(fn + ": can't open " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            /* read-only, nothing is lost */
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package me.vasan.jimple;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.vasan.jimple.Environment.Cell;
+
+/*
+ * A root Environment's globals by name. Looking a name up and assigning
+ * to it each take one probe: a name keeps its Cell once defined, so an
+ * assignment finds the cell and writes its value.
+ *
+ * A root normally belongs to one execution, so Table is unsynchronized;
+ * Shared is for a root whose functions may be called from several
+ * threads, such as the ones JimpleScriptEngine hands out in Bindings.
+ */
+abstract class Globals {
+    /* The cell of name, null if it isn't defined */
+    abstract Cell get(String name);
+
+    /* Sets name to val, defining it if it isn't yet */
+    abstract void put(String name, Object val);
+
+    /* The names defined, in no particular order */
+    abstract List<String> names();
+
+    /*
+     * Open addressing with linear probing over parallel arrays. A root
+     * holds the builtins and a handful of script globals, so it starts
+     * small and is grown to stay at most half full. Names are mostly the
+     * same String the scanner interned, so == usually settles a match.
+     */
+    static final class Table extends Globals {
+        private String[] keys = new String[16];
+        private Cell[] cells = new Cell[16];
+        private int size = 0;
+
+        Cell get(String name) {
+            int mask = keys.length - 1;
+            for (int i = hash(name) & mask; ; i = (i + 1) & mask) {
+                String k = keys[i];
+                if (k == name)
+                    return cells[i];
+                if (k == null)
+                    return null;
+                if (k.equals(name))
+                    return cells[i];
+            }
+        }
+
+        void put(String name, Object val) {
+            int mask = keys.length - 1;
+            int i = hash(name) & mask;
+            for (String k; (k = keys[i]) != null; i = (i + 1) & mask) {
+                if (k == name || k.equals(name)) {
+                    cells[i].value = val;
+                    return;
+                }
+            }
+            keys[i] = name;
+            cells[i] = new Cell(val);
+            if (++size * 2 > keys.length)
+                grow();
+        }
+
+        List<String> names() {
+            List<String> names = new ArrayList<>(size);
+            for (String k: keys)
+                if (k != null)
+                    names.add(k);
+            return names;
+        }
+
+        private void grow() {
+            String[] oldKeys = keys;
+            Cell[] oldCells = cells;
+            keys = new String[oldKeys.length * 2];
+            cells = new Cell[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == null)
+                    continue;
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                cells[i] = oldCells[j];
+            }
+        }
+
+        private static int hash(String name) {
+            int h = name.hashCode();
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /* Lock-free reads; a definition races only with other definitions */
+    static final class Shared extends Globals {
+        private final ConcurrentHashMap<String, Cell> cells = new ConcurrentHashMap<>();
+
+        Cell get(String name) {
+            return cells.get(name);
+        }
+
+        void put(String name, Object val) {
+            Cell c = cells.get(name);
+            if (c == null && (c = cells.putIfAbsent(name, new Cell(val))) == null)
+                return;
+            c.value = val;
+        }
+
+        List<String> names() {
+            return new ArrayList<>(cells.keySet());
+        }
+    }
+}
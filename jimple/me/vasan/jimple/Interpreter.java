@@ -1,10 +1,59 @@
 package me.vasan.jimple;
 
-import java.util.ArrayList;
+import java.util.List;
 
-public class Interpreter {
+/*
+ * How the last statement finished. Anything but NORMAL makes enclosing
+ * blocks stop; loops consume BREAK and CONTINUE, calls consume RETURN
+ * and TAIL_CALL.
+ */
+enum Completion {
+    NORMAL, RETURN, BREAK, CONTINUE, TAIL_CALL
+};
+
+/* A function value: the FunctionExpr plus the frame it was created in */
+class FunctionValue {
+    final FunctionExpr fe;
+    final Environment env;
+
+    FunctionValue(FunctionExpr fe, Environment env) {
+        this.fe = fe;
+        this.env = env;
+    }
+}
+
+public class Interpreter implements Caller {
     Environment root;
 
+    /*
+     * Frames of functions that don't create closures can't outlive the
+     * call, so they're recycled: pool[n] holds free frames with n slots.
+     */
+    private static final int POOL_SLOTS = 16;
+    private static final int POOL_DEPTH = 64;
+    private final Environment[][] pool = new Environment[POOL_SLOTS + 1][POOL_DEPTH];
+    private final int[] pooled = new int[POOL_SLOTS + 1];
+
+    /*
+     * num() evaluates an expression to an unboxed double. When the value
+     * turns out not to be a number it sets `missed` and parks the value,
+     * which the caller must then pick up with takeMissed().
+     */
+    boolean missed = false;
+    private Object missedValue;
+
+    /* Signals early exits without exceptions; see Completion */
+    private Completion completion = Completion.NORMAL;
+    private Object returnValue;
+
+    /*
+     * A `return f(...)` doesn't call f: it leaves f and its ready frame
+     * here with completion TAIL_CALL, and call() runs it in place of the
+     * returning function, so tail recursion runs in constant Java stack.
+     */
+    private FunctionValue tailFn;
+    private Environment tailEnv;
+
     public Interpreter(Environment env) {
         root = env;
     }
@@ -15,20 +64,42 @@ public class Interpreter {
 
     public Object interpret(Pgm ast, Environment env) throws RuntimeError {
         Object ret = null;
+        Environment script = new Environment(ast.nslots, env);
         if (ast instanceof Pgm)
-            for (Decl decl: ast.decls) {
-                ret = interpret(decl, env);
-            }
+            ret = interpret(ast.decls, script);
+        if (completion == Completion.RETURN)
+            ret = takeReturn();
         return ret;
     }
 
+    /* Only the last declaration's value is kept */
+    Object interpret(List<Decl> decls, Environment env) throws RuntimeError {
+        int last = decls.size() - 1;
+        for (int i = 0; i < last; i++) {
+            execute(decls.get(i), env);
+            if (completion != Completion.NORMAL)
+                return null;
+        }
+        return last < 0 ? null : interpret(decls.get(last), env);
+    }
+
+    private Object takeReturn() {
+        completion = Completion.NORMAL;
+        Object val = returnValue;
+        returnValue = null;
+        return val;
+    }
+
     /* 
      * Do we need separate logic for declarations and statements?
      */
     public Object interpret(Decl d, Environment env) throws RuntimeError {
         if (d.type == DeclType.VAR) {
             Var v = d.var;
-            env.put(v.id.name, interpret(v.rvalue, env));
+            if (v.id.depth < 0)
+                env.root.put(v.id.name, interpret(v.rvalue, env));
+            else
+                store(env, v.id.slot, v.rvalue, env);
             return null;
         } else if (d.type == DeclType.STMT) {
             return interpret(d.stmt, env);
@@ -58,22 +129,301 @@ public class Interpreter {
                 Object val = null;
                 while ((Boolean) interpret(s.w.cond, env)) {
                     val = interpret(s.w.then, env);
+                    if (completion != Completion.NORMAL && exitLoop())
+                        break;
                 }
                 return val;
             }
+            case RETURN_STMT:
+            case BREAK_STMT:
+            case CONTINUE_STMT: {
+                execute(s, env);
+                return null;
+            }
+            case BLOCK_STMT: { // locals live in the enclosing frame
+                return interpret(s.b.decls, env);
+            }
+            default:
+                return null;
+        }
+    }
+
+    /* Same as interpret(), for declarations whose value nobody looks at */
+    void execute(Decl d, Environment env) throws RuntimeError {
+        if (d.type == DeclType.STMT)
+            execute(d.stmt, env);
+        else
+            interpret(d, env);
+    }
+
+    void execute(Stmt s, Environment env) throws RuntimeError {
+        switch (s.type) {
+            case EXPR_STMT: {
+                Expr e = s.e.e;
+                if (e.type == ExprType.ASSIGN_EXPR && e.a.id.depth >= 0)
+                    store(env.ancestor(e.a.id.depth), e.a.id.slot, e.a.e, env);
+                else
+                    interpret(e, env);
+                break;
+            }
+            case IF_STMT:
+                if ((Boolean) interpret(s.i.cond, env))
+                    execute(s.i.then, env);
+                else if (s.i.alt != null)
+                    execute(s.i.alt, env);
+                break;
+            case WHILE_STMT:
+                while ((Boolean) interpret(s.w.cond, env)) {
+                    execute(s.w.then, env);
+                    if (completion != Completion.NORMAL && exitLoop())
+                        break;
+                }
+                break;
             case RETURN_STMT: {
-                return interpret(s.r.expr, env);
+                Expr e = s.r.expr;
+                if (e != null && e.type == ExprType.CALL && e.ce.tail) {
+                    Object fnRef = env.get(e.ce.id);
+                    if (fnRef instanceof FunctionValue) {
+                        tailFn = (FunctionValue) fnRef;
+                        tailEnv = enter(tailFn, e.ce.a, env);
+                        completion = Completion.TAIL_CALL;
+                        break;
+                    }
+                }
+                returnValue = e == null ? null : interpret(e, env);
+                completion = Completion.RETURN;
+                break;
             }
-            case BLOCK_STMT: { // very similar to interpret(pgm)
-                Environment block = new Environment(env);
-                Object ret = null;
+            case BREAK_STMT:
+                completion = Completion.BREAK;
+                break;
+            case CONTINUE_STMT:
+                completion = Completion.CONTINUE;
+                break;
+            case BLOCK_STMT:
                 for (Decl decl: s.b.decls) {
-                    ret = interpret(decl, block);
+                    execute(decl, env);
+                    if (completion != Completion.NORMAL)
+                        break;
                 }
-                return ret;
+                break;
+            default:
+                interpret(s, env);
+        }
+    }
+
+    /* Consumes a loop's BREAK or CONTINUE; true if the loop has to stop */
+    private boolean exitLoop() {
+        switch (completion) {
+            case CONTINUE:
+                completion = Completion.NORMAL;
+                return false;
+            case BREAK:
+                completion = Completion.NORMAL;
+                return true;
+            default: // RETURN and TAIL_CALL pass through
+                return true;
+        }
+    }
+
+    /* Evaluates rvalue into a slot of frame, unboxed if it is a number */
+    private void store(Environment frame, int slot, Expr rvalue, Environment env) throws RuntimeError {
+        double d = num(rvalue, env);
+        if (missed)
+            frame.slots[slot] = takeMissed();
+        else
+            frame.storeDouble(slot, d);
+    }
+
+    double num(Expr e, Environment env) throws RuntimeError {
+        switch (e.type) {
+            case PRIMARY:
+                if (e.pe.type == PrimaryType.NUM)
+                    return e.pe.num.doubleValue();
+                if (e.pe.type == PrimaryType.ID && e.pe.id.depth >= 0) {
+                    Environment frame = env.ancestor(e.pe.id.depth);
+                    Object val = frame.slots[e.pe.id.slot];
+                    if (val == Environment.UNBOXED)
+                        return frame.nums[e.pe.id.slot];
+                    return unbox(val);
+                }
+                break;
+            case BINARY_EXPR:
+                return e.b.node.executeDouble(this, env);
+            case INDEX: {
+                SimpleArray array = SimpleArray.asArray(interpret(e.ie.array, env));
+                int i = index(e.ie.index, env);
+                return array.nums != null ? array.getDouble(i) : unbox(array.get(i));
             }
+            case UNARY:
+                if (e.ue.o == Op.NEG) {
+                    double d = num(e.ue.e, env);
+                    if (missed)
+                        d = ((Number) takeMissed()).doubleValue();
+                    return -d;
+                }
+                break;
             default:
+                break;
+        }
+        return unbox(interpret(e, env));
+    }
+
+    /* Evaluates an array index without boxing it */
+    private int index(Expr e, Environment env) throws RuntimeError {
+        double d = num(e, env);
+        if (missed)
+            return SimpleArray.index(takeMissed());
+        return SimpleArray.index(d);
+    }
+
+    double unbox(Object val) {
+        if (val instanceof Number)
+            return ((Number) val).doubleValue();
+        missed = true;
+        missedValue = val;
+        return 0;
+    }
+
+    Object takeMissed() {
+        missed = false;
+        Object val = missedValue;
+        missedValue = null;
+        return val;
+    }
+
+    /* Boxes the result of a num()-style evaluation */
+    Object box(double d) {
+        if (missed)
+            return takeMissed();
+        return d;
+    }
+
+    Object call(FunctionValue fv, List<Expr> args, Environment env) throws RuntimeError {
+        return run(fv, enter(fv, args, env));
+    }
+
+    /* For natives calling back into the script, see Caller */
+    public Object apply(Object fn, Object[] args) throws RuntimeError {
+        if (fn instanceof NativeFunction)
+            return ((NativeFunction) fn).call(root, args);
+        if (!(fn instanceof FunctionValue))
+            throw new RuntimeError("Can only call functions");
+        FunctionValue fv = (FunctionValue) fn;
+        Environment fnEnv = frame(fv);
+        int n = Math.min(fv.fe.a.size(), args.length);
+        for (int i = 0; i < n; i++) {
+            if (args[i] instanceof Number)
+                fnEnv.storeDouble(i, ((Number) args[i]).doubleValue());
+            else
+                fnEnv.slots[i] = args[i];
+        }
+        return run(fv, fnEnv);
+    }
+
+    /* Runs fv in its ready frame fnEnv, and whatever it tail calls */
+    private Object run(FunctionValue fv, Environment fnEnv) throws RuntimeError {
+        while (true) {
+            JitFunction jf = Jit.tier(fv.fe, fnEnv.root);
+            if (jf != null) {
+                Object ret = compiled(jf, fnEnv);
+                if (ret != null) {
+                    leave(fv.fe, fnEnv);
+                    return ret;
+                }
+            }
+            execute(fv.fe.b, fnEnv);
+            leave(fv.fe, fnEnv);
+            if (completion != Completion.TAIL_CALL)
+                break;
+            completion = Completion.NORMAL;
+            fv = tailFn;
+            fnEnv = tailEnv;
+            tailFn = null;
+            tailEnv = null;
+        }
+        return completion == Completion.RETURN ? takeReturn() : null;
+    }
+
+    /* Evaluates args in env and calls fn, without an array for up to three */
+    private Object callNative(NativeFunction fn, List<Expr> args, Environment env) throws RuntimeError {
+        switch (args.size()) {
+            case 0:
+                return fn.call0(env.root);
+            case 1:
+                return fn.call1(env.root, interpret(args.get(0), env));
+            case 2: {
+                Object a = interpret(args.get(0), env);
+                return fn.call2(env.root, a, interpret(args.get(1), env));
+            }
+            case 3: {
+                Object a = interpret(args.get(0), env);
+                Object b = interpret(args.get(1), env);
+                return fn.call3(env.root, a, b, interpret(args.get(2), env));
+            }
+            default: {
+                Object[] values = new Object[args.size()];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = interpret(args.get(i), env);
+                return fn.call(env.root, values);
+            }
+        }
+    }
+
+    /* Runs the call in fnEnv as compiled code if all arguments are numbers */
+    private Object compiled(JitFunction jf, Environment fnEnv) {
+        int n = jf.fe.a.size();
+        double[] args = new double[n];
+        for (int i = 0; i < n; i++) {
+            if (fnEnv.slots[i] != Environment.UNBOXED)
                 return null;
+            args[i] = fnEnv.nums[i];
+        }
+        return jf.call(args, fnEnv.root);
+    }
+
+    /* A frame for a call of fv, with the arguments evaluated in env */
+    private Environment enter(FunctionValue fv, List<Expr> args, Environment env) throws RuntimeError {
+        Environment fnEnv = frame(fv);
+
+        /* set arguments */
+        int n = Math.min(fv.fe.a.size(), args.size());
+        for (int i = 0; i < n; i++) {
+            store(fnEnv, i, args.get(i), env);
+        }
+        return fnEnv;
+    }
+
+    /* An empty frame for a call of fv */
+    private Environment frame(FunctionValue fv) throws RuntimeError {
+        FunctionExpr fe = fv.fe;
+        if (fe.b == null)
+            parse(fe);
+        Environment fnEnv;
+        if (!fe.captures && fe.nslots <= POOL_SLOTS && pooled[fe.nslots] > 0
+                && pool[fe.nslots][pooled[fe.nslots] - 1].root == fv.env.root) {
+            fnEnv = pool[fe.nslots][--pooled[fe.nslots]];
+            fnEnv.parent = fv.env;
+        } else {
+            fnEnv = new Environment(fe.nslots, fv.env);
+        }
+        return fnEnv;
+    }
+
+    /* Parses a lazily parsed function on its first call, see LazyBody */
+    private static void parse(FunctionExpr fe) throws RuntimeError {
+        try {
+            fe.body();
+        } catch (SyntaxError e) {
+            throw new RuntimeError("in " + (fe.name != null ? fe.name : "<function>") + ": " + e.message);
+        }
+    }
+
+    private void leave(FunctionExpr fe, Environment fnEnv) {
+        if (!fe.captures && fe.nslots <= POOL_SLOTS && pooled[fe.nslots] < POOL_DEPTH) {
+            java.util.Arrays.fill(fnEnv.slots, null);
+            fnEnv.parent = null;
+            pool[fe.nslots][pooled[fe.nslots]++] = fnEnv;
         }
     }
 
@@ -90,101 +440,73 @@ public class Interpreter {
                     case STR:
                         return e.pe.str;
                     case ID: 
-                        return env.get(e.pe.id.name);
+                        return env.get(e.pe.id);
                 }
             case BINARY_EXPR:
-                Object lhs = interpret(e.b.lhs, env);
-                Object rhs = interpret(e.b.rhs, env);
-                switch (e.b.o) {
-                    case PLUS:
-                        if (lhs instanceof String) return lhs + ((String) rhs);
-                        return ((Number) lhs).doubleValue() + ((Number) rhs).doubleValue();
-                    case MIN:
-                        return ((Number) lhs).doubleValue() - ((Number) rhs).doubleValue();
-                    case MUL:
-                        return ((Number) lhs).doubleValue() * ((Number) rhs).doubleValue();
-                    case DIV:
-                        return ((Number) lhs).doubleValue() / ((Number) rhs).doubleValue();
-                    case EQ: // TODO: UGH?
-                        if (lhs instanceof Number)
-                            return (((Number) lhs).doubleValue()) == (((Number) rhs).doubleValue());
-                        else if (lhs instanceof Boolean)
-                            return (Boolean) lhs == (Boolean) rhs;
-                        else 
-                            return lhs == rhs;
-                    case NEQ: // TODO
-                        if (lhs instanceof Number)
-                            return (((Number) lhs).doubleValue()) != (((Number) rhs).doubleValue());
-                        else if (lhs instanceof Boolean)
-                            return (Boolean) lhs == (Boolean) rhs;
-                        else 
-                            return lhs == rhs;
-                    case GT:
-                        return (((Number) lhs).doubleValue()) > (((Number) rhs).doubleValue());
-                    case GTE:
-                        return (((Number) lhs).doubleValue()) >= (((Number) rhs).doubleValue());
-                    case LT:
-                        return (((Number) lhs).doubleValue()) < (((Number) rhs).doubleValue());
-                    case LTE:
-                        return (((Number) lhs).doubleValue()) <= (((Number) rhs).doubleValue());
-                    case LOR:
-                        return (Boolean) lhs || (Boolean) rhs;
-                    case LAN:
-                        return (Boolean) lhs && (Boolean) rhs;
-                    default:
-                        throw new RuntimeError("interpret(expr, env)");
-                }
+                return e.b.node.execute(this, env);
             case UNARY:
                 switch (e.ue.o) {
                     case NEG:
-                        return -1 * ((Number) interpret(e.ue.e, env)).doubleValue();
+                        return num(e, env);
                     case NOT:
                         return !(Boolean) interpret(e.ue.e, env);
                     default:
                         throw new RuntimeError("interpret(expr, env)");
                 }
             case CALL: {
-                Environment fnEnv = new Environment(env);
-                Object fnRef = env.get(e.ce.id.name);
-                if (fnRef instanceof FunctionExpr) {
-                    FunctionExpr fe = (FunctionExpr) fnRef;
-
-                    /* set arguments */
-                    for (int i = 0; i < fe.a.size(); i++) {
-                        fnEnv.put(fe.a.get(i).name, interpret(e.ce.a.get(i), env));
-                    }
-                    return interpret(fe.b, fnEnv);                
+                Object fnRef = env.get(e.ce.id);
+                if (fnRef instanceof FunctionValue) {
+                    return call((FunctionValue) fnRef, e.ce.a, env);
                 }
                 else if (fnRef instanceof NativeFunction) {
-                    NativeFunction fn = (NativeFunction) fnRef;
-                    
-                    /* set arguments */
-                    ArrayList<Object> args = new ArrayList<Object>();
-                    for (int i = 0; i < e.ce.a.size(); i++) {
-                        args.add(interpret(e.ce.a.get(i), env));
-                    }
-                    return fn.call(args.toArray());
+                    return callNative((NativeFunction) fnRef, e.ce.a, env);
                 }
+                throw new RuntimeError("Can only call functions");
             }
-            case FUNCTION: { // LOL: why not drop the whole node in there? ;-)
-                return e.fe;
+            case FUNCTION: {
+                return new FunctionValue(e.fe, env);
             }
             case ASSIGN_EXPR:
+                if (e.a.id.depth >= 0) {
+                    Environment frame = env.ancestor(e.a.id.depth);
+                    store(frame, e.a.id.slot, e.a.e, env);
+                    return frame.load(e.a.id.slot);
+                }
                 Object val = interpret(e.a.e, env);
-                env.update(e.a.id.name, val);
+                env.set(e.a.id, val);
                 return val;
             case OBJECT:
-                SimpleObject obj = new SimpleObject();
-                for (int i = 0; i < e.oe.keys.size(); i++) {
-                    String key = e.oe.keys.get(i);
-                    Object value = interpret(e.oe.values.get(i), env);
-                    obj.set(key, value);
+                Object[] values = new Object[e.oe.values.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = interpret(e.oe.values.get(i), env);
+                }
+                return e.oe.template.create(values);
+            case ARRAY: {
+                Object[] elements = new Object[e.ae.values.size()];
+                for (int i = 0; i < elements.length; i++)
+                    elements[i] = interpret(e.ae.values.get(i), env);
+                return SimpleArray.of(elements);
+            }
+            case INDEX: {
+                SimpleArray array = SimpleArray.asArray(interpret(e.ie.array, env));
+                return array.get(index(e.ie.index, env));
+            }
+            case INDEX_ASSIGN: {
+                SimpleArray array = SimpleArray.asArray(interpret(e.iae.array, env));
+                int i = index(e.iae.index, env);
+                double d = num(e.iae.e, env);
+                if (missed) {
+                    Object v = takeMissed();
+                    array.set(i, v);
+                    return v;
                 }
-                return obj;
+                array.setDouble(i, d);
+                return d;
+            }
             case PROPERTY_ACCESS:
                 Object object = interpret(e.pae.object, env);
                 if (object instanceof SimpleObject) {
-                    return ((SimpleObject) object).get(e.pae.property);
+                    return e.pae.cache.get((SimpleObject) object);
                 } else {
                     throw new RuntimeError("Cannot access property '" + e.pae.property + "' on non-object");
                 }
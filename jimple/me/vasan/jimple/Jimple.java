@@ -1,11 +1,14 @@
 package me.vasan.jimple;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.List;
+import java.nio.file.StandardOpenOption;
 
 public class Jimple {
     static final String SIMPLE_VERSION = "v0.1";
@@ -15,60 +18,102 @@ public class Jimple {
         message
     };
 
-    static boolean sawError = false;
+    static boolean useVM = false;
 
     private static void usage() {
-        System.out.println("usage: jimple [script]");
+        System.out.println("usage: jimple [--vm] [--out file] [script] | --serve [socket]");
         System.exit(64);
     }
 
-    static void report(int line, int charPos, String msg, RType rtype) {
-        System.err.printf("(line: %s, pos: %s) %s: %s\n", line, charPos, rtype, msg);
-        if(rtype == RType.error) sawError = true;
+    static void report(PrintStream err, int line, int charPos, String msg, RType rtype) {
+        err.printf("(line: %s, pos: %s) %s: %s\n", line, charPos, rtype, msg);
     }
 
-    private static void run(String input, Environment env) throws Exception {
+    private static void run(Engine engine, CharSequence input, Environment env) {
         try {
-            Scanner scanner = new Scanner(input);
-            List<Token> tokens = scanner.scanTokens();
-            Parser p = new Parser(tokens);
-            Pgm ast = p.parse();
-            Object res = (new Interpreter(env)).interpret(ast);
-            System.out.println(res == null ? "nil" : res);
+            execute(engine, engine.compile(input, System.err), env);
         } catch(Exception e) {
+            env.out.flush();
             e.printStackTrace();
+        } finally {
+            env.out.flush();
         }
     }
 
-    private static void runFile(String path) throws Exception {
-        Environment env = new Environment();
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()), env);
-        if (sawError) System.exit(65);
+    private static void execute(Engine engine, Engine.Script script, Environment env) throws RuntimeError {
+        Object res = engine.run(script, env);
+        env.out.println(res == null ? "nil" : res.toString());
     }
 
-    private static void runPrompt() throws Exception {
+    /* Runs the script at path in env, reporting errors to err; the exit status */
+    static int runFile(String path, Environment env, Engine engine, PrintStream err) throws IOException {
+        MappedByteBuffer bytes;
+        try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            bytes = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        Charset charset = Charset.defaultCharset();
+        Scanner scanner = null;
+        try {
+            /* an unchanged script is loaded as the program it compiled to */
+            ScriptCache cache = ScriptCache.ENABLED ? new ScriptCache(bytes, charset.name()) : null;
+            Pgm ast = cache != null ? cache.load() : null;
+            Engine.Script script;
+            if (ast == null) {
+                scanner = new Scanner(new ByteSource(bytes, charset), err);
+                script = engine.compile(scanner);
+                if (cache != null && !script.sawError)
+                    cache.store(script.ast);
+            } else {
+                script = engine.script(ast, false);
+            }
+            execute(engine, script, env);
+        } catch(Exception e) {
+            env.out.flush(); // what the script printed comes before the error
+            e.printStackTrace(err);
+        } finally {
+            env.out.flush();
+        }
+        return scanner != null && scanner.sawError ? 65 : 0;
+    }
+
+    private static void runPrompt(Output out) throws Exception {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
-        Environment env = new Environment();
+        Environment env = new Environment(out);
+        Engine engine = new Engine(useVM);
 
         System.out.println("This is Simple " + SIMPLE_VERSION);
         while(true) {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line, env);
-            sawError = false;
+            run(engine, line, env);
         }
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length > 1) {
+        if (args.length > 0 && args[0].equals("--vm")) {
+            useVM = true;
+            args = java.util.Arrays.copyOfRange(args, 1, args.length);
+        }
+        Output out = Output.stdout();
+        if (args.length > 0 && args[0].equals("--out")) {
+            if (args.length < 2) usage();
+            out = new Output(FileChannel.open(Paths.get(args[1]), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), Charset.defaultCharset());
+            args = java.util.Arrays.copyOfRange(args, 2, args.length);
+        }
+
+        if (args.length > 0 && args[0].equals("--serve")) {
+            if (args.length > 2) usage();
+            new Daemon(args.length == 2 ? args[1] : Daemon.SOCKET).serve();
+        } else if (args.length > 1) {
             usage();
         } else if (args.length == 1) {
-            runFile(args[0]);
+            int status = runFile(args[0], new Environment(out), new Engine(useVM), System.err);
+            if (status != 0) System.exit(status);
         } else {
-            runPrompt();
+            runPrompt(out);
         }
     }
 }
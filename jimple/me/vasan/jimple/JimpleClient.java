@@ -0,0 +1,62 @@
+package me.vasan.jimple;
+
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/*
+ * Thin client for a running Daemon: `JimpleClient [--vm] script` runs the
+ * script there, copies its output to stdout and stderr and exits with its
+ * status; `JimpleClient --stop` stops the daemon. Nothing but the socket
+ * code is loaded, so it starts about as fast as a JVM can.
+ */
+public class JimpleClient {
+    public static void main(String[] args) throws IOException {
+        boolean vm = args.length > 0 && args[0].equals("--vm");
+        if (vm)
+            args = java.util.Arrays.copyOfRange(args, 1, args.length);
+        if (args.length != 1) {
+            System.out.println("usage: jimple-client [--vm] script | --stop");
+            System.exit(64);
+        }
+
+        try (SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress.of(Daemon.SOCKET))) {
+            if (args[0].equals("--stop")) {
+                Daemon.send(ch, Daemon.STOP, new byte[0], 0, 0);
+                return;
+            }
+            byte[] path = Paths.get(args[0]).toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8);
+            byte[] request = new byte[1 + path.length];
+            request[0] = (byte) (vm ? 1 : 0);
+            System.arraycopy(path, 0, request, 1, path.length);
+            Daemon.send(ch, Daemon.RUN, request, 0, request.length);
+
+            ByteBuffer head = ByteBuffer.allocate(5);
+            while (true) {
+                head.clear();
+                if (!Daemon.read(ch, head))
+                    break;
+                ByteBuffer body = ByteBuffer.allocate(head.getInt(1));
+                if (!Daemon.read(ch, body)) // hung up after the head
+                    break;
+                switch (head.get(0)) {
+                    case Daemon.OUT: System.out.write(body.array(), 0, body.limit()); break;
+                    case Daemon.ERR: System.err.write(body.array(), 0, body.limit()); break;
+                    case Daemon.EXIT:
+                        System.out.flush();
+                        System.exit(body.getInt(0));
+                        return;
+                    default: break;
+                }
+            }
+            System.err.println("jimple: the daemon hung up");
+            System.exit(70);
+        } catch (IOException e) {
+            System.err.println("jimple: no daemon at " + Daemon.SOCKET + ": " + e.getMessage());
+            System.exit(69);
+        }
+    }
+}
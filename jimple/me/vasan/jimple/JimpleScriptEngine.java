@@ -0,0 +1,198 @@
+package me.vasan.jimple;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+/*
+ * JSR-223 front end to Engine. compile() parses a script once into a
+ * CompiledScript, which can then be evaluated any number of times, from
+ * any thread, against different contexts.
+ *
+ * Each evaluation runs in a fresh root Environment. Before it starts, the
+ * context's global-scope and then engine-scope bindings are defined as
+ * globals; when it ends, the globals the script defined or assigned are
+ * copied back into the engine scope, so a later eval on the same engine
+ * sees the variables and functions an earlier one defined. Bindings the
+ * script left alone, from either scope, are not touched. Java numbers
+ * become doubles on the way in, the only number type scripts have, and a
+ * MethodHandle becomes a native function (see NativeFunction). print()
+ * writes to the context's writer. Functions handed out that way can be
+ * called from any thread, so the root is a shared one.
+ *
+ * A function defined at the top of an earlier eval is rebound to the new
+ * root when it comes back in, so the globals it reads are this eval's:
+ * the script frame it closed over is copied onto the new root, once for
+ * all the functions that share it, and the rebound function is what is
+ * copied back. A function created inside another function keeps its
+ * enclosing frames, and with them the globals of the eval that created it.
+ */
+public class JimpleScriptEngine extends AbstractScriptEngine implements Compilable {
+    private final ScriptEngineFactory factory;
+    private final Engine engine = new Engine();
+
+    JimpleScriptEngine(ScriptEngineFactory factory) {
+        this.factory = factory;
+    }
+
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return compile(script).eval(context);
+    }
+
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return compile(reader).eval(context);
+    }
+
+    public CompiledScript compile(String script) throws ScriptException {
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream err = new PrintStream(errors, true, StandardCharsets.UTF_8);
+        Scanner scanner = new Scanner(script, err);
+        try {
+            Engine.Script compiled = engine.compile(scanner);
+            if (scanner.sawError)
+                throw new ScriptException(errors.toString(StandardCharsets.UTF_8).trim());
+            return new Compiled(compiled);
+        } catch (SyntaxError e) {
+            throw new ScriptException(scanner.sawError ? errors.toString(StandardCharsets.UTF_8).trim() : "syntax error in " + e.message);
+        }
+    }
+
+    public CompiledScript compile(Reader reader) throws ScriptException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[8192];
+        try {
+            for (int n; (n = reader.read(buf)) > 0; )
+                sb.append(buf, 0, n);
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        return compile(sb.toString());
+    }
+
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    private final class Compiled extends CompiledScript {
+        private final Engine.Script script;
+
+        Compiled(Engine.Script script) {
+            this.script = script;
+        }
+
+        public Object eval(ScriptContext context) throws ScriptException {
+            Output out = new Output(new WriterStream(context.getWriter()), StandardCharsets.UTF_8);
+            Environment root = new Environment(out, true); // its functions may end up in Bindings
+            Map<String, Object> given = new HashMap<>(); // what each binding was defined as, to tell if the script changed it
+            Map<Environment, Environment> moved = new IdentityHashMap<>(); // earlier script frames, copied onto root
+            define(root, context.getBindings(ScriptContext.GLOBAL_SCOPE), given, moved);
+            define(root, context.getBindings(ScriptContext.ENGINE_SCOPE), given, moved);
+            try {
+                return engine.run(script, root);
+            } catch (RuntimeError e) {
+                throw new ScriptException(e.message);
+            } catch (UncheckedIOException e) {
+                throw new ScriptException(e.getCause());
+            } catch (RuntimeException e) { // e.g. a type error the interpreter doesn't check for
+                ScriptException se = new ScriptException(e.toString());
+                se.initCause(e);
+                throw se;
+            } finally {
+                out.flush();
+                Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+                if (bindings != null)
+                    for (String name: root.names()) {
+                        Object v = root.get(name);
+                        if (!(v instanceof NativeFunction) && !(given.containsKey(name) && given.get(name) == v))
+                            bindings.put(name, v);
+                    }
+            }
+        }
+
+        public ScriptEngine getEngine() {
+            return JimpleScriptEngine.this;
+        }
+    }
+
+    private static void define(Environment root, Bindings bindings, Map<String, Object> given, Map<Environment, Environment> moved) {
+        if (bindings == null)
+            return;
+        for (Map.Entry<String, Object> b: bindings.entrySet()) {
+            Object v = b.getValue();
+            if (v instanceof Number)
+                v = ((Number) v).doubleValue();
+            else if (v instanceof MethodHandle)
+                v = NativeFunction.of(b.getKey(), (MethodHandle) v);
+            else if (v instanceof FunctionValue)
+                v = rebind((FunctionValue) v, root, moved);
+            root.put(b.getKey(), v);
+            given.put(b.getKey(), v instanceof FunctionValue ? b.getValue() : v); // a rebound function goes back
+        }
+    }
+
+    /* fv on root, if it was defined at the top of an earlier eval */
+    private static FunctionValue rebind(FunctionValue fv, Environment root, Map<Environment, Environment> moved) {
+        Environment script = fv.env;
+        if (script.root == root || script.parent != script.root)
+            return fv; // already on root, or made inside a function
+        Environment copy = moved.computeIfAbsent(script, e -> {
+            Environment c = new Environment(e.slots.length, root);
+            System.arraycopy(e.slots, 0, c.slots, 0, e.slots.length);
+            if (e.nums != null)
+                c.nums = e.nums.clone();
+            return c;
+        });
+        return new FunctionValue(fv.fe, copy);
+    }
+
+    /* print() writes bytes; this hands them to a Writer when they are flushed */
+    private static final class WriterStream extends OutputStream {
+        private final Writer writer;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        WriterStream(Writer writer) {
+            this.writer = writer;
+        }
+
+        public void write(int b) {
+            line.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) {
+            line.write(b, off, len);
+        }
+
+        public void flush() {
+            try {
+                writer.write(line.toString(StandardCharsets.UTF_8));
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            line.reset();
+        }
+    }
+}
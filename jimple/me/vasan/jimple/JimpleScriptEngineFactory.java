@@ -0,0 +1,66 @@
+package me.vasan.jimple;
+
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/*
+ * Lets javax.script find the language: ScriptEngineManager loads this
+ * class through META-INF/services, so
+ * `new ScriptEngineManager().getEngineByName("jimple")` (or by the "sim"
+ * extension) returns a JimpleScriptEngine.
+ */
+public class JimpleScriptEngineFactory implements ScriptEngineFactory {
+    private static final List<String> NAMES = List.of("jimple", "simple");
+    private static final List<String> EXTENSIONS = List.of("sim");
+    private static final List<String> MIME_TYPES = List.of("application/x-jimple");
+
+    public String getEngineName() { return "Jimple"; }
+    public String getEngineVersion() { return Jimple.SIMPLE_VERSION; }
+    public List<String> getExtensions() { return EXTENSIONS; }
+    public List<String> getMimeTypes() { return MIME_TYPES; }
+    public List<String> getNames() { return NAMES; }
+    public String getLanguageName() { return "Simple"; }
+    public String getLanguageVersion() { return Jimple.SIMPLE_VERSION; }
+
+    public Object getParameter(String key) {
+        switch (key) {
+            case ScriptEngine.ENGINE: return getEngineName();
+            case ScriptEngine.ENGINE_VERSION: return getEngineVersion();
+            case ScriptEngine.NAME: return NAMES.get(0);
+            case ScriptEngine.LANGUAGE: return getLanguageName();
+            case ScriptEngine.LANGUAGE_VERSION: return getLanguageVersion();
+            /* every eval runs in its own root Environment, see Engine */
+            case "THREADING": return "MULTITHREADED";
+            default: return null;
+        }
+    }
+
+    /* There are no methods, only functions: obj is passed first */
+    public String getMethodCallSyntax(String obj, String m, String... args) {
+        StringBuilder sb = new StringBuilder(m).append('(').append(obj);
+        for (String a: args)
+            sb.append(", ").append(a);
+        return sb.append(')').toString();
+    }
+
+    public String getOutputStatement(String toDisplay) {
+        return "print(\"" + toDisplay.replace("\"", "\\\"") + "\");";
+    }
+
+    public String getProgram(String... statements) {
+        StringBuilder sb = new StringBuilder();
+        for (String s: statements) {
+            sb.append(s);
+            if (!s.trim().endsWith(";") && !s.trim().endsWith("}"))
+                sb.append(';');
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    public ScriptEngine getScriptEngine() {
+        return new JimpleScriptEngine(this);
+    }
+}
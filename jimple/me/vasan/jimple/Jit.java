@@ -0,0 +1,689 @@
+package me.vasan.jimple;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Entry point of a function compiled by Jit; args are the parameters in order */
+interface JitCode {
+    double call(double[] args);
+}
+
+/* A FunctionExpr compiled to a hidden class, plus what its code assumes */
+final class JitFunction {
+    final FunctionExpr fe;
+    final JitCode code;
+    final Id self; // global the body calls itself through, null if it doesn't
+
+    JitFunction(FunctionExpr fe, JitCode code, Id self) {
+        this.fe = fe;
+        this.code = code;
+        this.self = self;
+    }
+
+    /*
+     * Runs the compiled code, or returns null when the caller has to
+     * interpret the call instead: either the self-reference no longer
+     * names this function, or the code deoptimized.
+     */
+    Object call(double[] args, Environment root) {
+        if (self != null && !Jit.isSelf(root.cell(self), fe))
+            return null;
+        try {
+            return code.call(args);
+        } catch (Jit.Deopt d) {
+            Jit.invalidate(fe);
+            return null;
+        }
+    }
+}
+
+/*
+ * Second tier: functions called more than THRESHOLD times are compiled to
+ * a JVM class, defined with Lookup.defineHiddenClass so HotSpot can inline
+ * and optimize them like any other Java code.
+ *
+ * Only pure numeric functions are compiled: parameters and locals of the
+ * function's own frame, number literals, arithmetic, comparisons, if,
+ * while, break/continue, return and calls to itself through a global.
+ * Such a function has no side effects, so whenever the compiled code meets
+ * something it can't handle (falling off the end, which returns nil) it
+ * throws Deopt and the call is simply run again by the interpreter; the
+ * code is then dropped for good. Calls with a non-number argument never
+ * enter the compiled code.
+ *
+ * The classes are written by hand in class file version 49, which doesn't
+ * need StackMapTable frames. -DJitThreshold=n sets the threshold (0 turns
+ * the JIT off), -DJitDebug=1 reports compiles and deopts.
+ */
+final class Jit {
+    static final int THRESHOLD = Integer.getInteger("JitThreshold", 1000);
+    private static final boolean DEBUG = "1".equals(System.getProperty("JitDebug"));
+    private static final int MAX_SLOTS = 127; // dload/dstore take a one byte index
+
+    static final class Deopt extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Deopt() { super(null, null, false, false); }
+    }
+
+    static final Deopt DEOPT = new Deopt();
+
+    /* Thrown at compile time for anything outside the compiled subset */
+    private static final class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String what) { super(what, null, false, false); }
+    }
+
+    private Jit() {}
+
+    /*
+     * Counts a call of fe; the compiled code to try, or null. Counting stops
+     * at THRESHOLD, so hot functions stop writing to the shared AST; calls
+     * racing past it all land in compile(), which compiles once.
+     */
+    static JitFunction tier(FunctionExpr fe, Environment root) {
+        JitFunction jf = fe.jit;
+        if (jf != null || fe.calls >= THRESHOLD || ++fe.calls < THRESHOLD)
+            return jf;
+        return compile(fe, root);
+    }
+
+    private static JitFunction compile(FunctionExpr fe, Environment root) {
+        synchronized (fe) {
+            if (fe.tiered)
+                return fe.jit;
+            fe.tiered = true;
+        }
+        try {
+            fe.jit = new FunctionCompiler(fe, root).compile();
+            if (DEBUG)
+                System.err.println("jit: compiled " + name(fe) + " after " + THRESHOLD + " calls");
+        } catch (Unsupported u) {
+            if (DEBUG)
+                System.err.println("jit: not compiling " + name(fe) + ": " + u.getMessage());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            if (DEBUG)
+                System.err.println("jit: failed to load " + name(fe) + ": " + e);
+        }
+        return fe.jit;
+    }
+
+    static void invalidate(FunctionExpr fe) {
+        fe.jit = null; // tiered is set, so it won't be compiled again
+        if (DEBUG)
+            System.err.println("jit: deoptimized " + name(fe));
+    }
+
+    /* Is cell's value a function (interpreted or VM) made from fe? */
+    static boolean isSelf(Environment.Cell cell, FunctionExpr fe) {
+        if (cell == null)
+            return false;
+        Object v = cell.value;
+        if (v instanceof FunctionValue)
+            return ((FunctionValue) v).fe == fe;
+        return v instanceof Closure && ((Closure) v).chunk.fe == fe;
+    }
+
+    private static String name(FunctionExpr fe) {
+        return fe.name != null ? fe.name : "<function>";
+    }
+
+    /* Translates one function body into `static double run(double...)` */
+    private static final class FunctionCompiler {
+        private final FunctionExpr fe;
+        private final Environment root;
+        private final ClassWriter cw = new ClassWriter();
+        private final Code code = new Code(cw);
+        private final List<Code.Label[]> loops = new ArrayList<>(); // {continue, break}
+        private String runDesc;
+        private Code.Label start;
+        private Id self;
+
+        FunctionCompiler(FunctionExpr fe, Environment root) {
+            this.fe = fe;
+            this.root = root;
+        }
+
+        JitFunction compile() throws Unsupported, ReflectiveOperationException {
+            int nparams = fe.a.size();
+            Stmt body;
+            try {
+                body = fe.body(); // sets nslots, if it wasn't parsed yet
+            } catch (SyntaxError e) {
+                throw new Unsupported("body doesn't parse");
+            }
+            if (fe.nslots > MAX_SLOTS)
+                throw new Unsupported("too many locals");
+            runDesc = "(" + "D".repeat(nparams) + ")D";
+
+            /* locals other than parameters start out as 0, for the verifier */
+            for (int s = nparams; s < fe.nslots; s++) {
+                code.op(Code.DCONST_0, 2);
+                code.local(Code.DSTORE, s);
+            }
+            start = code.label();
+            code.bind(start);
+            stmt(body);
+            deopt(); // fell off the end: the function returns nil
+            cw.method(0x0008, "run", runDesc, code, Math.max(2 * fe.nslots, 1));
+
+            /* public double call(double[] args) { return run(args[0], ...); } */
+            Code bridge = new Code(cw);
+            for (int i = 0; i < nparams; i++) {
+                bridge.op(Code.ALOAD_1, 1);
+                bridge.iconst(i);
+                bridge.op(Code.DALOAD, 0);
+            }
+            bridge.invokestatic(ClassWriter.NAME, "run", runDesc, -2 * nparams + 2);
+            bridge.op(Code.DRETURN, -2);
+            cw.method(0x0001, "call", "([D)D", bridge, 2);
+
+            Code init = new Code(cw);
+            init.op(Code.ALOAD_0, 1);
+            init.invokespecial("java/lang/Object", "<init>", "()V", -1);
+            init.op(Code.RETURN, 0);
+            cw.method(0x0001, "<init>", "()V", init, 1);
+
+            Class<?> cls = MethodHandles.lookup().defineHiddenClass(cw.toBytes(), true).lookupClass();
+            JitCode jc = (JitCode) cls.getDeclaredConstructor().newInstance();
+            return new JitFunction(fe, jc, self);
+        }
+
+        private void deopt() {
+            code.getstatic("me/vasan/jimple/Jit", "DEOPT", "Lme/vasan/jimple/Jit$Deopt;");
+            code.op(Code.ATHROW, -1);
+        }
+
+        private void decls(List<Decl> decls) throws Unsupported {
+            for (Decl d: decls) {
+                if (d.type == DeclType.STMT) {
+                    stmt(d.stmt);
+                    continue;
+                }
+                if (d.var.rvalue == null)
+                    throw new Unsupported("let without a value");
+                num(d.var.rvalue);
+                code.local(Code.DSTORE, d.var.id.slot);
+            }
+        }
+
+        private void stmt(Stmt s) throws Unsupported {
+            switch (s.type) {
+                case EXPR_STMT: {
+                    Expr e = s.e.e;
+                    if (e.type == ExprType.ASSIGN_EXPR) {
+                        num(e.a.e);
+                        code.local(Code.DSTORE, local(e.a.id));
+                    } else {
+                        num(e);
+                        code.op(Code.POP2, -2);
+                    }
+                    break;
+                }
+                case IF_STMT: {
+                    Code.Label alt = code.label(), end = code.label();
+                    jumpIfFalse(s.i.cond, alt);
+                    stmt(s.i.then);
+                    code.jump(Code.GOTO, end);
+                    code.bind(alt);
+                    if (s.i.alt != null)
+                        stmt(s.i.alt);
+                    code.bind(end);
+                    break;
+                }
+                case WHILE_STMT: {
+                    Code.Label top = code.label(), end = code.label();
+                    code.bind(top);
+                    jumpIfFalse(s.w.cond, end);
+                    loops.add(new Code.Label[] { top, end });
+                    stmt(s.w.then);
+                    loops.remove(loops.size() - 1);
+                    code.jump(Code.GOTO, top);
+                    code.bind(end);
+                    break;
+                }
+                case RETURN_STMT: {
+                    Expr e = s.r.expr;
+                    if (e == null)
+                        throw new Unsupported("return without a value");
+                    if (e.type == ExprType.CALL && e.ce.tail) {
+                        /* self tail call: rebind the parameters and start over */
+                        selfCall(e.ce);
+                        for (int i = e.ce.a.size() - 1; i >= 0; i--)
+                            code.local(Code.DSTORE, i);
+                        code.jump(Code.GOTO, start);
+                        break;
+                    }
+                    num(e);
+                    code.op(Code.DRETURN, -2);
+                    break;
+                }
+                case BREAK_STMT:
+                    code.jump(Code.GOTO, loops.get(loops.size() - 1)[1]);
+                    break;
+                case CONTINUE_STMT:
+                    code.jump(Code.GOTO, loops.get(loops.size() - 1)[0]);
+                    break;
+                case BLOCK_STMT:
+                    decls(s.b.decls);
+                    break;
+            }
+        }
+
+        /* Pushes the value of a numeric expression */
+        private void num(Expr e) throws Unsupported {
+            switch (e.type) {
+                case PRIMARY:
+                    if (e.pe.type == PrimaryType.NUM) {
+                        code.dconst(e.pe.num.doubleValue());
+                        return;
+                    }
+                    if (e.pe.type == PrimaryType.ID) {
+                        code.local(Code.DLOAD, local(e.pe.id));
+                        return;
+                    }
+                    throw new Unsupported("non-numeric literal");
+                case BINARY_EXPR: {
+                    int op;
+                    switch (e.b.o) {
+                        case PLUS: op = Code.DADD; break;
+                        case MIN: op = Code.DSUB; break;
+                        case MUL: op = Code.DMUL; break;
+                        case DIV: op = Code.DDIV; break;
+                        default: throw new Unsupported("boolean used as a number");
+                    }
+                    num(e.b.lhs);
+                    num(e.b.rhs);
+                    code.op(op, -2);
+                    return;
+                }
+                case UNARY:
+                    if (e.ue.o != Op.NEG)
+                        throw new Unsupported("boolean used as a number");
+                    num(e.ue.e);
+                    code.op(Code.DNEG, 0);
+                    return;
+                case ASSIGN_EXPR:
+                    num(e.a.e);
+                    code.op(Code.DUP2, 2);
+                    code.local(Code.DSTORE, local(e.a.id));
+                    return;
+                case CALL:
+                    selfCall(e.ce);
+                    code.invokestatic(ClassWriter.NAME, "run", runDesc, -2 * fe.a.size() + 2);
+                    return;
+                default:
+                    throw new Unsupported(e.type + " expression");
+            }
+        }
+
+        /* Pushes the arguments of a call the function makes to itself */
+        private void selfCall(CallExpr ce) throws Unsupported {
+            if (ce.id.depth >= 0 || !isSelf(root.cell(ce.id), fe))
+                throw new Unsupported("calls " + ce.id.name);
+            if (self != null && !self.name.equals(ce.id.name))
+                throw new Unsupported("calls itself by two names");
+            if (ce.a.size() != fe.a.size())
+                throw new Unsupported("calls itself with a different arity");
+            self = ce.id;
+            for (Expr arg: ce.a)
+                num(arg);
+        }
+
+        private int local(Id id) throws Unsupported {
+            if (id.depth != 0)
+                throw new Unsupported(id.depth < 0 ? "uses global " + id.name : "uses outer variable " + id.name);
+            return id.slot;
+        }
+
+        /* Comparisons: opcode to jump when true and when false, and dcmpl/dcmpg for NaN */
+        private static final Map<Op, int[]> COMPARE = new HashMap<>();
+        static {
+            COMPARE.put(Op.EQ, new int[] { Code.IFEQ, Code.IFNE, Code.DCMPL });
+            COMPARE.put(Op.NEQ, new int[] { Code.IFNE, Code.IFEQ, Code.DCMPL });
+            COMPARE.put(Op.GT, new int[] { Code.IFGT, Code.IFLE, Code.DCMPL });
+            COMPARE.put(Op.GTE, new int[] { Code.IFGE, Code.IFLT, Code.DCMPL });
+            COMPARE.put(Op.LT, new int[] { Code.IFLT, Code.IFGE, Code.DCMPG });
+            COMPARE.put(Op.LTE, new int[] { Code.IFLE, Code.IFGT, Code.DCMPG });
+        }
+
+        private void jumpIfFalse(Expr cond, Code.Label target) throws Unsupported {
+            branch(cond, target, false);
+        }
+
+        /* Jumps to target when cond evaluates to `when`, falls through otherwise */
+        private void branch(Expr cond, Code.Label target, boolean when) throws Unsupported {
+            switch (cond.type) {
+                case PRIMARY:
+                    if (cond.pe.type != PrimaryType.B)
+                        throw new Unsupported("non-boolean condition");
+                    if (cond.pe.b == when)
+                        code.jump(Code.GOTO, target);
+                    return;
+                case UNARY:
+                    if (cond.ue.o != Op.NOT)
+                        throw new Unsupported("non-boolean condition");
+                    branch(cond.ue.e, target, !when);
+                    return;
+                case BINARY_EXPR: {
+                    Op o = cond.b.o;
+                    if (o == Op.LOR || o == Op.LAN) {
+                        /* `a || b` jumps on a true a; `a && b` on a false a */
+                        boolean decides = o == Op.LOR;
+                        if (decides == when) {
+                            branch(cond.b.lhs, target, when);
+                        } else {
+                            Code.Label skip = code.label();
+                            branch(cond.b.lhs, skip, decides);
+                            branch(cond.b.rhs, target, when);
+                            code.bind(skip);
+                            return;
+                        }
+                        branch(cond.b.rhs, target, when);
+                        return;
+                    }
+                    int[] cmp = COMPARE.get(o);
+                    if (cmp == null)
+                        throw new Unsupported("non-boolean condition");
+                    num(cond.b.lhs);
+                    num(cond.b.rhs);
+                    code.op(cmp[2], -3);
+                    code.jump(when ? cmp[0] : cmp[1], target);
+                    return;
+                }
+                default:
+                    throw new Unsupported(cond.type + " condition");
+            }
+        }
+    }
+
+    /* Just enough of a class file writer for FunctionCompiler and NativeFunction */
+    static final class ClassWriter {
+        static final String NAME = "me/vasan/jimple/JitCompiled";
+
+        private final String name, superName, iface; // iface may be null
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream cp = new DataOutputStream(pool);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+        private final ByteArrayOutputStream fields = new ByteArrayOutputStream();
+        private int nfields = 0;
+        private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+        private int nmethods = 0;
+
+        ClassWriter() {
+            this(NAME, "java/lang/Object", "me/vasan/jimple/JitCode");
+        }
+
+        ClassWriter(String name, String superName, String iface) {
+            this.name = name;
+            this.superName = superName;
+            this.iface = iface;
+        }
+
+        private int entry(String key, int slots, byte[] bytes) {
+            Integer idx = entries.get(key);
+            if (idx != null)
+                return idx;
+            pool.write(bytes, 0, bytes.length);
+            entries.put(key, count);
+            count += slots;
+            return count - slots;
+        }
+
+        private static byte[] bytes(int tag, int... u2s) {
+            byte[] b = new byte[1 + 2 * u2s.length];
+            b[0] = (byte) tag;
+            for (int i = 0; i < u2s.length; i++) {
+                b[1 + 2 * i] = (byte) (u2s[i] >> 8);
+                b[2 + 2 * i] = (byte) u2s[i];
+            }
+            return b;
+        }
+
+        int utf8(String s) {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            try {
+                DataOutputStream out = new DataOutputStream(b);
+                out.writeByte(1);
+                out.writeUTF(s);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return entry("U" + s, 1, b.toByteArray());
+        }
+
+        int cls(String name) {
+            return entry("C" + name, 1, bytes(7, utf8(name)));
+        }
+
+        int string(String s) {
+            return entry("S" + s, 1, bytes(8, utf8(s)));
+        }
+
+        int doubleConst(double d) {
+            long bits = Double.doubleToRawLongBits(d);
+            return entry("D" + bits, 2, bytes(6, (int) (bits >>> 48), (int) (bits >>> 32), (int) (bits >>> 16), (int) bits));
+        }
+
+        int member(int tag, String owner, String name, String desc) {
+            int nt = entry("N" + name + ":" + desc, 1, bytes(12, utf8(name), utf8(desc)));
+            return entry(tag + owner + "." + name + ":" + desc, 1, bytes(tag, cls(owner), nt));
+        }
+
+        void field(int access, String name, String desc) {
+            try {
+                DataOutputStream out = new DataOutputStream(fields);
+                out.writeShort(access);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(desc));
+                out.writeShort(0); // attributes
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            nfields++;
+        }
+
+        void method(int access, String name, String desc, Code code, int maxLocals) {
+            try {
+                DataOutputStream out = new DataOutputStream(methods);
+                out.writeShort(access);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(desc));
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + code.size);
+                out.writeShort(code.maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(code.size);
+                out.write(code.bytes, 0, code.size);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            nmethods++;
+        }
+
+        byte[] toBytes() {
+            int self = cls(name), parent = cls(superName), implemented = iface != null ? cls(iface) : 0;
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            try {
+                DataOutputStream out = new DataOutputStream(b);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                out.writeShort(count);
+                pool.writeTo(out);
+                out.writeShort(0x0030); // final, super
+                out.writeShort(self);
+                out.writeShort(parent);
+                if (iface != null) {
+                    out.writeShort(1);
+                    out.writeShort(implemented);
+                } else {
+                    out.writeShort(0);
+                }
+                out.writeShort(nfields);
+                fields.writeTo(out);
+                out.writeShort(nmethods);
+                methods.writeTo(out);
+                out.writeShort(0); // attributes
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return b.toByteArray();
+        }
+    }
+
+    /* Bytecode of one method, with forward jumps patched through Labels */
+    static final class Code {
+        static final int DCONST_0 = 0x0e, DCONST_1 = 0x0f, BIPUSH = 0x10, LDC2_W = 0x14;
+        static final int ICONST_0 = 0x03, LDC_W = 0x13, ILOAD = 0x15, DLOAD = 0x18, ALOAD = 0x19;
+        static final int ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, DALOAD = 0x31;
+        static final int DSTORE = 0x39, POP2 = 0x58, DUP2 = 0x5c;
+        static final int DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DNEG = 0x77;
+        static final int DCMPL = 0x97, DCMPG = 0x98;
+        static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+        static final int GOTO = 0xa7, DRETURN = 0xaf, ARETURN = 0xb0, RETURN = 0xb1, GETSTATIC = 0xb2;
+        static final int PUTSTATIC = 0xb3, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+        static final int ATHROW = 0xbf, CHECKCAST = 0xc0;
+
+        static final class Label {
+            int pos = -1;
+            final List<Integer> refs = new ArrayList<>(); // offsets of jumps to patch
+        }
+
+        private final ClassWriter cw;
+        byte[] bytes = new byte[64];
+        int size = 0;
+        int depth = 0, maxStack = 0; // in JVM stack words
+
+        Code(ClassWriter cw) {
+            this.cw = cw;
+        }
+
+        private void u1(int b) {
+            if (size == bytes.length)
+                bytes = java.util.Arrays.copyOf(bytes, size * 2);
+            bytes[size++] = (byte) b;
+        }
+
+        private void u2(int v) {
+            u1(v >> 8);
+            u1(v);
+        }
+
+        private void stack(int delta) {
+            depth += delta;
+            if (depth > maxStack)
+                maxStack = depth;
+        }
+
+        void op(int op, int delta) {
+            u1(op);
+            stack(delta);
+        }
+
+        /* dload/dstore of a frame slot; doubles take two JVM locals */
+        void local(int op, int slot) {
+            u1(op);
+            u1(2 * slot);
+            stack(op == DLOAD ? 2 : -2);
+        }
+
+        /* iload/aload of a JVM local */
+        void load(int op, int local) {
+            u1(op);
+            u1(local);
+            stack(1);
+        }
+
+        /* ldc_w of a constant pool entry that takes one stack word */
+        void ldc(int index) {
+            op(LDC_W, 1);
+            u2(index);
+        }
+
+        void checkcast(String cls) {
+            op(CHECKCAST, 0);
+            u2(cw.cls(cls));
+        }
+
+        void iconst(int i) {
+            if (i <= 5) {
+                op(ICONST_0 + i, 1);
+            } else {
+                op(BIPUSH, 1);
+                u1(i);
+            }
+        }
+
+        void dconst(double d) {
+            if (Double.doubleToRawLongBits(d) == 0L) {
+                op(DCONST_0, 2);
+            } else if (d == 1.0) {
+                op(DCONST_1, 2);
+            } else {
+                op(LDC2_W, 2);
+                u2(cw.doubleConst(d));
+            }
+        }
+
+        void getstatic(String owner, String name, String desc) {
+            op(GETSTATIC, 1);
+            u2(cw.member(9, owner, name, desc));
+        }
+
+        void putstatic(String owner, String name, String desc) {
+            op(PUTSTATIC, -1);
+            u2(cw.member(9, owner, name, desc));
+        }
+
+        void invokevirtual(String owner, String name, String desc, int delta) {
+            op(INVOKEVIRTUAL, delta);
+            u2(cw.member(10, owner, name, desc));
+        }
+
+        void invokestatic(String owner, String name, String desc, int delta) {
+            op(INVOKESTATIC, delta);
+            u2(cw.member(10, owner, name, desc));
+        }
+
+        void invokespecial(String owner, String name, String desc, int delta) {
+            op(INVOKESPECIAL, delta);
+            u2(cw.member(10, owner, name, desc));
+        }
+
+        Label label() {
+            return new Label();
+        }
+
+        void jump(int op, Label target) {
+            int at = size;
+            op(op, op == GOTO ? 0 : -1);
+            if (target.pos >= 0) {
+                u2(target.pos - at);
+            } else {
+                target.refs.add(at);
+                u2(0);
+            }
+        }
+
+        void bind(Label l) {
+            l.pos = size;
+            for (int at: l.refs) {
+                int off = size - at;
+                bytes[at + 1] = (byte) (off >> 8);
+                bytes[at + 2] = (byte) off;
+            }
+        }
+    }
+}
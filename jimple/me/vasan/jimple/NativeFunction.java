@@ -1,30 +1,221 @@
 package me.vasan.jimple;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+/*
+ * A Java method callable from scripts, bound once to a MethodHandle.
+ *
+ * The handle is adapted when the function is made so that every call has
+ * the same shape: the calling root Environment first, then the arguments
+ * as Objects, returning an Object. A method that doesn't want the root
+ * gets it dropped; one whose only other parameter is an Object[] is
+ * variadic and receives all the arguments in it. Environment is package
+ * private, so only builtins like print can ask for the root; a host's
+ * methods take just the arguments. Fixed-arity functions
+ * are called through call0..call3 with no array at all; like script
+ * functions, missing arguments are nil and extra ones are ignored.
+ *
+ * A handle held in a field is opaque to HotSpot, so of() also spins a
+ * hidden subclass per function (with Jit's class writer) that keeps the
+ * handle in a static final, where it is a constant: the overridden
+ * invokeN inlines the whole adapted handle and the target method behind
+ * it. If that fails, calls go through the field instead.
+ */
 public class NativeFunction {
-    String meth;
+    private static final int FAST = 3; // call0..call3
+    private static final String SPUN = "me/vasan/jimple/NativeCall";
+    private static final String ENV = "Lme/vasan/jimple/Environment;";
+
+    final String name;
+    final int arity; // -1 if variadic
+    final MethodHandle handle; // (Environment, Object...)Object, or (Environment, Object[])Object
+
+    NativeFunction(String name, int arity, MethodHandle handle) {
+        this.name = name;
+        this.arity = arity;
+        this.handle = handle;
+    }
+
+    /* target as a native function called name */
+    public static NativeFunction of(String name, MethodHandle target) {
+        MethodType type = target.type();
+        if (type.parameterCount() == 0 || type.parameterType(0) != Environment.class)
+            target = MethodHandles.dropArguments(target, 0, Environment.class);
+        target = target.asFixedArity();
+        type = target.type();
+        int arity;
+        if (type.parameterCount() == 2 && type.parameterType(1) == Object[].class) {
+            arity = -1;
+            target = target.asType(MethodType.methodType(Object.class, Environment.class, Object[].class));
+        } else {
+            arity = type.parameterCount() - 1;
+            target = target.asType(MethodType.genericMethodType(arity).insertParameterTypes(0, Environment.class));
+        }
+        if (arity <= FAST) {
+            try {
+                return spin(name, arity, target);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                /* the field will do */
+            }
+        }
+        return new NativeFunction(name, arity, target);
+    }
+
+    /*
+     * final class NativeCall extends NativeFunction {
+     *     static final MethodHandle H = classData;
+     *     NativeCall(String name, int arity, MethodHandle h) { super(name, arity, h); }
+     *     Object invokeN(Environment root, Object... args) { return H.invokeExact(root, args...); }
+     * }
+     * where invokeN is the one method of the arity, invoke(Environment, Object[]) if variadic.
+     */
+    private static NativeFunction spin(String name, int arity, MethodHandle handle) throws ReflectiveOperationException {
+        Jit.ClassWriter cw = new Jit.ClassWriter(SPUN, "me/vasan/jimple/NativeFunction", null);
+        cw.field(0x0018, "H", "Ljava/lang/invoke/MethodHandle;");
+
+        Jit.Code clinit = new Jit.Code(cw);
+        clinit.invokestatic("java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", 1);
+        clinit.ldc(cw.string("_"));
+        clinit.ldc(cw.cls("java/lang/invoke/MethodHandle"));
+        clinit.invokestatic("java/lang/invoke/MethodHandles", "classData",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;", -2);
+        clinit.checkcast("java/lang/invoke/MethodHandle");
+        clinit.putstatic(SPUN, "H", "Ljava/lang/invoke/MethodHandle;");
+        clinit.op(Jit.Code.RETURN, 0);
+        cw.method(0x0008, "<clinit>", "()V", clinit, 0);
+
+        String ctor = "(Ljava/lang/String;ILjava/lang/invoke/MethodHandle;)V";
+        Jit.Code init = new Jit.Code(cw);
+        init.op(Jit.Code.ALOAD_0, 1);
+        init.load(Jit.Code.ALOAD, 1);
+        init.load(Jit.Code.ILOAD, 2);
+        init.load(Jit.Code.ALOAD, 3);
+        init.invokespecial("me/vasan/jimple/NativeFunction", "<init>", ctor, -4);
+        init.op(Jit.Code.RETURN, 0);
+        cw.method(0x0000, "<init>", ctor, init, 4);
+
+        int nargs = arity < 0 ? 1 : arity;
+        String desc = "(" + ENV + (arity < 0 ? "[Ljava/lang/Object;" : "Ljava/lang/Object;".repeat(arity)) + ")Ljava/lang/Object;";
+        Jit.Code call = new Jit.Code(cw);
+        call.getstatic(SPUN, "H", "Ljava/lang/invoke/MethodHandle;");
+        for (int i = 1; i <= nargs + 1; i++)
+            call.load(Jit.Code.ALOAD, i);
+        call.invokevirtual("java/lang/invoke/MethodHandle", "invokeExact", desc, -(nargs + 1));
+        call.op(Jit.Code.ARETURN, -1);
+        cw.method(0x0000, arity < 0 ? "invoke" : "invoke" + arity, desc, call, nargs + 2);
+
+        MethodHandles.Lookup spun = MethodHandles.lookup().defineHiddenClassWithClassData(cw.toBytes(), handle, true);
+        MethodHandle make = spun.findConstructor(spun.lookupClass(), MethodType.fromMethodDescriptorString(ctor, null));
+        try {
+            return (NativeFunction) make.invoke(name, arity, handle);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new ReflectiveOperationException(t);
+        }
+    }
+
+    Object call0(Environment root) throws RuntimeError {
+        try {
+            return invoke0(root);
+        } catch (Throwable t) {
+            throw failed(t);
+        }
+    }
 
-    public NativeFunction(String meth) {
-        this.meth = meth;
+    Object call1(Environment root, Object a) throws RuntimeError {
+        try {
+            return invoke1(root, a);
+        } catch (Throwable t) {
+            throw failed(t);
+        }
     }
 
-    public Object print(Object... args) {
-        for (Object a: args)
-            System.out.print(a.toString());
-        System.out.println();
-        return null;
+    Object call2(Environment root, Object a, Object b) throws RuntimeError {
+        try {
+            return invoke2(root, a, b);
+        } catch (Throwable t) {
+            throw failed(t);
+        }
     }
 
-    public long clock(Object... args) {
-        return System.currentTimeMillis();
+    Object call3(Environment root, Object a, Object b, Object c) throws RuntimeError {
+        try {
+            return invoke3(root, a, b, c);
+        } catch (Throwable t) {
+            throw failed(t);
+        }
     }
 
-    public Object call(Object... args) throws RuntimeError {
-        if (meth.equals("print"))
-            return print(args);
-        else if (meth.equals("clock"))
-            return clock(args);
-        else {
-            throw new RuntimeError("NativeFunction#call()");
+    /* Any number of arguments; the slow path */
+    Object call(Environment root, Object[] args) throws RuntimeError {
+        try {
+            if (arity < 0)
+                return invoke(root, args);
+            if (args.length != arity)
+                args = Arrays.copyOf(args, arity);
+            switch (arity) {
+                case 0: return invoke0(root);
+                case 1: return invoke1(root, args[0]);
+                case 2: return invoke2(root, args[0], args[1]);
+                case 3: return invoke3(root, args[0], args[1], args[2]);
+                default:
+                    Object[] all = new Object[arity + 1];
+                    all[0] = root;
+                    System.arraycopy(args, 0, all, 1, arity);
+                    return handle.invokeWithArguments(all);
+            }
+        } catch (Throwable t) {
+            throw failed(t);
         }
     }
-}
\ No newline at end of file
+
+    /* Overridden by the spun subclass for its arity; these go through the field */
+
+    Object invoke0(Environment root) throws Throwable {
+        if (arity == 0)
+            return (Object) handle.invokeExact(root);
+        return arity < 0 ? invoke(root, new Object[0]) : call(root, new Object[0]);
+    }
+
+    Object invoke1(Environment root, Object a) throws Throwable {
+        if (arity == 1)
+            return (Object) handle.invokeExact(root, a);
+        return arity < 0 ? invoke(root, new Object[] { a }) : call(root, new Object[] { a });
+    }
+
+    Object invoke2(Environment root, Object a, Object b) throws Throwable {
+        if (arity == 2)
+            return (Object) handle.invokeExact(root, a, b);
+        return arity < 0 ? invoke(root, new Object[] { a, b }) : call(root, new Object[] { a, b });
+    }
+
+    Object invoke3(Environment root, Object a, Object b, Object c) throws Throwable {
+        if (arity == 3)
+            return (Object) handle.invokeExact(root, a, b, c);
+        return arity < 0 ? invoke(root, new Object[] { a, b, c }) : call(root, new Object[] { a, b, c });
+    }
+
+    /* Only called when variadic */
+    Object invoke(Environment root, Object[] args) throws Throwable {
+        return (Object) handle.invokeExact(root, args);
+    }
+
+    /* The call's Throwable as something the interpreter can throw */
+    private RuntimeError failed(Throwable t) {
+        if (t instanceof RuntimeError)
+            return (RuntimeError) t;
+        if (t instanceof Error && !(t instanceof LinkageError))
+            throw (Error) t;
+        if (t instanceof ClassCastException || t instanceof NullPointerException)
+            return new RuntimeError(name + ": bad argument: " + t.getMessage());
+        return new RuntimeError(name + ": " + t);
+    }
+
+    public String toString() {
+        return "<native " + name + ">";
+    }
+}
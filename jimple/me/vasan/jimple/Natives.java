@@ -0,0 +1,208 @@
+package me.vasan.jimple;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * The native functions every root Environment starts with. The builtins
+ * below are looked up once, when the class loads; a host adds its own
+ * with register(), and roots made after that see them too. A
+ * NativeFunction holds nothing per root (print finds its stream through
+ * the root it is called with), so all roots share the same ones.
+ */
+public final class Natives {
+    private static final Map<String, NativeFunction> REGISTRY = new ConcurrentHashMap<>();
+    private static final long ORIGIN = System.nanoTime();
+
+    /* bench(): how long warmup may take, and how many timings it keeps at most */
+    private static final long WARMUP = 1_000_000_000L;
+    private static final int SAMPLES = 1 << 16;
+    private static final ObjectTemplate RESULT =
+        new ObjectTemplate(new String[] { "iterations", "batch", "mean", "p50", "p90", "p99", "max", "bytes" });
+    private static final Object[] NO_ARGS = new Object[0];
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            builtin(lookup, "print", MethodType.methodType(Object.class, Environment.class, Object[].class));
+            builtin(lookup, "clock", MethodType.methodType(long.class));
+            builtin(lookup, "nanoTime", MethodType.methodType(double.class));
+            builtin(lookup, "bench", MethodType.methodType(Object.class, Environment.class, Object.class, Object.class));
+            builtin(lookup, "len", MethodType.genericMethodType(1));
+            builtin(lookup, "push", MethodType.genericMethodType(2));
+            builtin(lookup, "flush", MethodType.methodType(Object.class, Environment.class));
+            MethodType one = MethodType.genericMethodType(1);
+            builtin(lookup, FileLib.class, "open", one);
+            builtin(lookup, FileLib.class, "read", MethodType.methodType(Object.class, Object[].class));
+            builtin(lookup, FileLib.class, "close", one);
+            builtin(lookup, FileLib.class, "lines", one);
+            builtin(lookup, FileLib.class, "getdirentries", one);
+            builtin(lookup, FileLib.class, "next", one);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Natives() {}
+
+    private static void builtin(MethodHandles.Lookup lookup, String name, MethodType type) throws ReflectiveOperationException {
+        builtin(lookup, Natives.class, name, type);
+    }
+
+    private static void builtin(MethodHandles.Lookup lookup, Class<?> in, String name, MethodType type) throws ReflectiveOperationException {
+        register(name, lookup.findStatic(in, name, type));
+    }
+
+    /* Makes target, which takes the script's arguments, callable from scripts as name; see NativeFunction */
+    public static void register(String name, MethodHandle target) {
+        REGISTRY.put(name, NativeFunction.of(name, target));
+    }
+
+    /* Defines every registered native in root */
+    static void define(Environment root) {
+        for (NativeFunction f: REGISTRY.values())
+            root.put(f.name, f);
+    }
+
+    static Object print(Environment root, Object[] args) {
+        Output out = root.out;
+        for (Object a: args)
+            out.print(a == null ? "nil" : a.toString());
+        out.println();
+        return null;
+    }
+
+    /* Writes out what print() has buffered */
+    static Object flush(Environment root) {
+        root.out.flush();
+        return null;
+    }
+
+    /* The number of elements of an array, or chars of a string */
+    static Object len(Object v) throws RuntimeError {
+        if (v instanceof SimpleArray)
+            return (double) ((SimpleArray) v).size();
+        if (v instanceof String)
+            return (double) ((String) v).length();
+        throw new RuntimeError("len: not an array or a string");
+    }
+
+    /* Appends v to array a; its new length */
+    static Object push(Object a, Object v) throws RuntimeError {
+        if (!(a instanceof SimpleArray))
+            throw new RuntimeError("push: not an array");
+        SimpleArray array = (SimpleArray) a;
+        array.push(v);
+        return (double) array.size();
+    }
+
+    static long clock() {
+        return System.currentTimeMillis();
+    }
+
+    /*
+     * Monotonic nanoseconds since the interpreter started. Counted from
+     * then rather than from System.nanoTime()'s arbitrary origin so that,
+     * as a double, it stays exact to the nanosecond for over 100 days.
+     */
+    static double nanoTime() {
+        return System.nanoTime() - ORIGIN;
+    }
+
+    /*
+     * Calls fn with no arguments `iterations` times and reports how long a
+     * call takes. The same number of calls are made first to warm up (for
+     * at most a second), so the measured ones run in the Jit tier and in
+     * code HotSpot has compiled. Every call is timed on its own unless
+     * there are more than SAMPLES, when they're timed in equal batches of
+     * `batch` calls. The percentiles and max are then of batch means, not
+     * of single calls, and the printed line says so. Either way calls
+     * under a few tens of ns are dominated by the clock.
+     * Allocation is what the thread allocated over the measured calls, per
+     * call; it is nil where the JVM doesn't count it.
+     *
+     * Prints a line of results and returns them as an object, times in ns.
+     */
+    static Object bench(Environment root, Object fn, Object iterations) throws RuntimeError {
+        if (!(iterations instanceof Number) || ((Number) iterations).longValue() < 1)
+            throw new RuntimeError("bench: iterations must be a positive number");
+        long n = ((Number) iterations).longValue();
+        Caller caller = Caller.current();
+
+        long deadline = System.nanoTime() + WARMUP;
+        for (long i = 0; i < n && System.nanoTime() - deadline < 0; i++)
+            caller.apply(fn, NO_ARGS);
+
+        long batch = (n + SAMPLES - 1) / SAMPLES;
+        double[] samples = new double[(int) ((n + batch - 1) / batch)];
+        long allocated = Allocation.current();
+        long start = System.nanoTime();
+        long done = 0;
+        for (int s = 0; s < samples.length; s++) {
+            long k = Math.min(batch, n - done);
+            long t0 = System.nanoTime();
+            for (long i = 0; i < k; i++)
+                caller.apply(fn, NO_ARGS);
+            samples[s] = (double) (System.nanoTime() - t0) / k;
+            done += k;
+        }
+        double mean = (double) (System.nanoTime() - start) / n;
+        Double bytes = null;
+        if (allocated >= 0) {
+            long after = Allocation.current();
+            if (after >= 0)
+                bytes = (double) (after - allocated) / n;
+        }
+
+        Arrays.sort(samples);
+        double p50 = percentile(samples, 0.50), p90 = percentile(samples, 0.90), p99 = percentile(samples, 0.99);
+        double max = samples[samples.length - 1];
+        Output out = root.out;
+        String of = batch == 1 ? "" : "batch ";
+        out.print(String.format(Locale.ROOT, "bench: %d calls%s, mean %s, %sp50 %s, %sp90 %s, %sp99 %s, %smax %s, %s",
+            n, batch == 1 ? "" : " in batches of " + batch, time(mean),
+            of, time(p50), of, time(p90), of, time(p99), of, time(max),
+            bytes == null ? "allocation unknown" : String.format(Locale.ROOT, "%.1f B/call", bytes)));
+        out.println();
+        return RESULT.create(new Object[] { (double) n, (double) batch, mean, p50, p90, p99, max, bytes });
+    }
+
+    /* The nearest-rank percentile p of sorted */
+    private static double percentile(double[] sorted, double p) {
+        return sorted[Math.max((int) Math.ceil(p * sorted.length) - 1, 0)];
+    }
+
+    private static String time(double ns) {
+        if (ns < 1e3)
+            return String.format(Locale.ROOT, "%.1f ns", ns);
+        if (ns < 1e6)
+            return String.format(Locale.ROOT, "%.2f us", ns / 1e3);
+        if (ns < 1e9)
+            return String.format(Locale.ROOT, "%.2f ms", ns / 1e6);
+        return String.format(Locale.ROOT, "%.2f s", ns / 1e9);
+    }
+
+    /* Bytes allocated by the current thread; loaded by the first bench() */
+    private static final class Allocation {
+        private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+        private static com.sun.management.ThreadMXBean threads() {
+            java.lang.management.ThreadMXBean t = ManagementFactory.getThreadMXBean();
+            if (!(t instanceof com.sun.management.ThreadMXBean))
+                return null;
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) t;
+            return threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled() ? threads : null;
+        }
+
+        /* -1 if unknown, as for a virtual thread */
+        static long current() {
+            return THREADS == null ? -1 : THREADS.getCurrentThreadAllocatedBytes();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package me.vasan.jimple;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * AST rewrites done once between parsing and resolution:
+ *  - subtrees made only of literals are folded into a single literal,
+ *    using the interpreter's own operator semantics (BinaryNode.generic),
+ *    so `-1 * 60 * 60` becomes the literal -3600;
+ *  - if's with a literal condition keep just the arm that runs, and
+ *    while(false) loops are dropped.
+ * Folded literals are boxed once here instead of on every evaluation.
+ * Anything that would fail at runtime (`1 + "a"`) is left alone so the
+ * error still happens where it did. -DOptimizerDebug=1 reports each change.
+ */
+public class Optimizer {
+    private final boolean debug;
+    int changes = 0;
+
+    Optimizer() {
+        String debugEnabled = System.getProperty("OptimizerDebug");
+        this.debug = debugEnabled != null && debugEnabled.equals("1");
+    }
+
+    Pgm optimize(Pgm ast) {
+        ast.decls = decls(ast.decls);
+        return ast;
+    }
+
+    private List<Decl> decls(List<Decl> decls) {
+        List<Decl> out = new ArrayList<>(decls.size());
+        for (int i = 0; i < decls.size(); i++) {
+            Decl d = decls.get(i);
+            boolean last = i == decls.size() - 1;
+            if (d.type == DeclType.VAR) {
+                if (d.var.rvalue != null)
+                    d.var.rvalue = expr(d.var.rvalue);
+                out.add(d);
+                continue;
+            }
+            Stmt s = stmt(d.stmt);
+            if (s == null) {
+                /* the last declaration's value is the block's value */
+                if (last) out.add(new Decl(noop(d.stmt)));
+                continue;
+            }
+            d.stmt = s;
+            out.add(d);
+        }
+        return out;
+    }
+
+    /* null when the statement can't do anything */
+    private Stmt stmt(Stmt s) {
+        switch (s.type) {
+            case EXPR_STMT:
+                s.e.e = expr(s.e.e);
+                return s;
+            case IF_STMT: {
+                s.i.cond = expr(s.i.cond);
+                Stmt then = body(s.i.then);
+                Stmt alt = s.i.alt == null ? null : body(s.i.alt);
+                Boolean cond = bool(s.i.cond);
+                if (cond == null) {
+                    s.i.then = then;
+                    s.i.alt = alt;
+                    return s;
+                }
+                report("if (" + cond + "): kept " + (cond ? "then" : alt == null ? "neither" : "else") + " arm");
+                return cond ? then : alt;
+            }
+            case WHILE_STMT:
+                s.w.cond = expr(s.w.cond);
+                if (Boolean.FALSE.equals(bool(s.w.cond))) {
+                    report("while (false): removed loop");
+                    return null;
+                }
+                s.w.then = body(s.w.then);
+                return s;
+            case RETURN_STMT:
+                if (s.r.expr != null)
+                    s.r.expr = expr(s.r.expr);
+                return s;
+            case BLOCK_STMT:
+                s.b.decls = decls(s.b.decls);
+                return s;
+            default:
+                return s;
+        }
+    }
+
+    /* Statements in a then/else/loop body can't be left out, only replaced */
+    Stmt body(Stmt s) {
+        Stmt opt = stmt(s);
+        return opt != null ? opt : noop(s);
+    }
+
+    /* Stands in for a removed statement: evaluates to what it would have */
+    private static Stmt noop(Stmt removed) {
+        return new Stmt(new ExprStmt(literal(removed.type == StmtType.IF_STMT ? false : null)));
+    }
+
+    private Expr expr(Expr e) {
+        switch (e.type) {
+            case BINARY_EXPR: {
+                BinaryExpr b = e.b;
+                b.lhs = expr(b.lhs);
+                b.rhs = expr(b.rhs);
+                if (b.o == Op.LOR || b.o == Op.LAN) {
+                    /* the rhs is dead when the lhs decides */
+                    Boolean lhs = bool(b.lhs);
+                    if (lhs != null && lhs == (b.o == Op.LOR))
+                        return fold(e, lhs);
+                    if (lhs == null || bool(b.rhs) == null)
+                        return e;
+                    return fold(e, b.o == Op.LOR ? lhs || bool(b.rhs) : lhs && bool(b.rhs));
+                }
+                if (!isLiteral(b.lhs) || !isLiteral(b.rhs))
+                    return e;
+                try {
+                    return fold(e, BinaryNode.generic(b.o, value(b.lhs), value(b.rhs)));
+                } catch (RuntimeError | RuntimeException ex) {
+                    return e;
+                }
+            }
+            case UNARY: {
+                e.ue.e = expr(e.ue.e);
+                Expr operand = e.ue.e;
+                if (e.ue.o == Op.NEG && isLiteral(operand) && operand.pe.type == PrimaryType.NUM)
+                    return fold(e, -operand.pe.num.doubleValue());
+                if (e.ue.o == Op.NOT && bool(operand) != null)
+                    return fold(e, !bool(operand));
+                return e;
+            }
+            case ASSIGN_EXPR:
+                e.a.e = expr(e.a.e);
+                return e;
+            case CALL:
+                for (int i = 0; i < e.ce.a.size(); i++)
+                    e.ce.a.set(i, expr(e.ce.a.get(i)));
+                return e;
+            case FUNCTION:
+                if (e.fe.b != null) // lazy bodies are optimized once parsed
+                    e.fe.b = body(e.fe.b);
+                return e;
+            case OBJECT:
+                for (int i = 0; i < e.oe.values.size(); i++)
+                    e.oe.values.set(i, expr(e.oe.values.get(i)));
+                return e;
+            case PROPERTY_ACCESS:
+                e.pae.object = expr(e.pae.object);
+                return e;
+            case ARRAY:
+                for (int i = 0; i < e.ae.values.size(); i++)
+                    e.ae.values.set(i, expr(e.ae.values.get(i)));
+                return e;
+            case INDEX:
+                e.ie.array = expr(e.ie.array);
+                e.ie.index = expr(e.ie.index);
+                return e;
+            case INDEX_ASSIGN:
+                e.iae.array = expr(e.iae.array);
+                e.iae.index = expr(e.iae.index);
+                e.iae.e = expr(e.iae.e);
+                return e;
+            default:
+                return e;
+        }
+    }
+
+    private Expr fold(Expr e, Object value) {
+        Expr lit = literal(value);
+        lit.span(e.fline, e.fcol, e.tline, e.tcol);
+        report(show(e) + " => " + show(lit));
+        return lit;
+    }
+
+    private static Expr literal(Object value) {
+        return new Expr(new PrimaryExpr(value));
+    }
+
+    private static boolean isLiteral(Expr e) {
+        return e.type == ExprType.PRIMARY && e.pe.type != PrimaryType.ID;
+    }
+
+    private static Object value(Expr e) {
+        switch (e.pe.type) {
+            case NUM: return e.pe.num;
+            case STR: return e.pe.str;
+            case B: return e.pe.b;
+            default: return null;
+        }
+    }
+
+    /* The value of a boolean literal, null if e isn't one */
+    private static Boolean bool(Expr e) {
+        return e.type == ExprType.PRIMARY && e.pe.type == PrimaryType.B ? e.pe.b : null;
+    }
+
+    private void report(String what) {
+        changes++;
+        if (debug)
+            System.err.println("optimizer: " + what);
+    }
+
+    /* Source-like rendering of an expression, for the debug report */
+    static String show(Expr e) {
+        switch (e.type) {
+            case PRIMARY:
+                switch (e.pe.type) {
+                    case ID: return e.pe.id.name;
+                    case STR: return "\"" + e.pe.str + "\"";
+                    case NIL: return "nil";
+                    case B: return e.pe.b.toString();
+                    default: return e.pe.num.toString();
+                }
+            case BINARY_EXPR:
+                return show(e.b.lhs) + " " + symbol(e.b.o) + " " + show(e.b.rhs);
+            case UNARY:
+                return symbol(e.ue.o) + show(e.ue.e);
+            case ASSIGN_EXPR:
+                return e.a.id.name + " = " + show(e.a.e);
+            case CALL:
+                return e.ce.id.name + "(...)";
+            case PROPERTY_ACCESS:
+                return show(e.pae.object) + "." + e.pae.property;
+            case INDEX:
+                return show(e.ie.array) + "[" + show(e.ie.index) + "]";
+            case INDEX_ASSIGN:
+                return show(e.iae.array) + "[" + show(e.iae.index) + "] = " + show(e.iae.e);
+            case ARRAY:
+                return "[...]";
+            case FUNCTION:
+                return "fn(...)";
+            default:
+                return "{...}";
+        }
+    }
+
+    private static String symbol(Op o) {
+        switch (o) {
+            case LOR: return "||";
+            case LAN: return "&&";
+            case EQ: return "==";
+            case NEQ: return "!=";
+            case GT: return ">";
+            case GTE: return ">=";
+            case LT: return "<";
+            case LTE: return "<=";
+            case MIN: case NEG: return "-";
+            case PLUS: return "+";
+            case MUL: return "*";
+            case DIV: return "/";
+            default: return "!";
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package me.vasan.jimple;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Where a root's print() output goes. Text is encoded straight into a
+ * direct ByteBuffer, which is written to the channel only when it fills
+ * (-DOutputBuffer bytes, 32 KB by default), when the script calls
+ * flush(), and when the execution ends. Standard output is written
+ * through its FileChannel, not System.out, which takes a lock and
+ * flushes on every print.
+ *
+ * Like the rest of a root, an Output belongs to the one execution
+ * running in it and isn't synchronized. As with PrintStream, a failed
+ * write (say, to a closed pipe) drops the output instead of failing the
+ * script.
+ */
+final class Output implements Flushable {
+    static final int CAPACITY = Integer.getInteger("OutputBuffer", 32 << 10);
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    /* fd 1; never closed */
+    private static final class Stdout {
+        static final FileChannel CHANNEL = new FileOutputStream(FileDescriptor.out).getChannel();
+    }
+
+    private final WritableByteChannel ch;
+    private final OutputStream stream; // under ch, flushed along with it; null for a plain channel
+    private final CharsetEncoder encoder;
+    private final boolean ascii; // the charset writes ASCII as single bytes
+    private ByteBuffer buf; // made by the first print, so runs that don't print don't pay for it
+    private boolean failed = false;
+
+    Output(WritableByteChannel ch, Charset charset) {
+        this(ch, null, charset);
+    }
+
+    Output(OutputStream stream, Charset charset) {
+        this(Channels.newChannel(stream), stream, charset);
+    }
+
+    private Output(WritableByteChannel ch, OutputStream stream, Charset charset) {
+        this.ch = ch;
+        this.stream = stream;
+        this.encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.ascii = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+            || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    static Output stdout() {
+        return new Output(Stdout.CHANNEL, Charset.defaultCharset());
+    }
+
+    void print(String s) {
+        ByteBuffer b = buffer();
+        int n = s.length();
+        int i = 0;
+        if (ascii) {
+            while (i < n) {
+                char c = s.charAt(i);
+                if (c >= 0x80)
+                    break;
+                if (!b.hasRemaining())
+                    b = drain();
+                b.put((byte) c);
+                i++;
+            }
+            if (i == n)
+                return;
+        }
+        CharBuffer chars = CharBuffer.wrap(s, i, n);
+        while (true) {
+            CoderResult r = encoder.encode(chars, b, true);
+            if (!r.isOverflow())
+                break;
+            b = drain();
+        }
+        encoder.reset();
+    }
+
+    void println() {
+        ByteBuffer b = buffer();
+        if (b.remaining() < NEWLINE.length)
+            b = drain();
+        b.put(NEWLINE);
+    }
+
+    void println(String s) {
+        print(s);
+        println();
+    }
+
+    /* Writes out everything printed so far */
+    public void flush() {
+        if (buf != null && buf.position() > 0)
+            drain();
+        if (stream != null && !failed) {
+            try {
+                stream.flush();
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+    }
+
+    private ByteBuffer buffer() {
+        if (buf == null)
+            buf = ByteBuffer.allocateDirect(CAPACITY);
+        return buf;
+    }
+
+    /* Empties buf into the channel; buf, ready for more */
+    private ByteBuffer drain() {
+        buf.flip();
+        try {
+            while (buf.hasRemaining() && !failed)
+                ch.write(buf);
+        } catch (IOException e) {
+            failed = true;
+        }
+        buf.clear();
+        return buf;
+    }
+}
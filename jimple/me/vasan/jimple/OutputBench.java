@@ -0,0 +1,50 @@
+package me.vasan.jimple;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * print() throughput: usage `OutputBench [lines] [file]` (default 1M
+ * lines to /dev/null). Writes lines the way print("line ", i, " of the
+ * output") does, first through an autoflushing PrintStream like
+ * System.out, which print used to write to, then through Output, and
+ * reports lines/s for each.
+ */
+public class OutputBench {
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        String path = args.length > 1 ? args[1] : "/dev/null";
+        Charset charset = Charset.defaultCharset();
+
+        for (int run = 1; run <= 3; run++) {
+            long t0 = System.nanoTime();
+            try (PrintStream ps = new PrintStream(new FileOutputStream(path), true, charset)) {
+                for (int i = 0; i < lines; i++) {
+                    ps.print("line ");
+                    ps.print(Double.toString(i));
+                    ps.print(" of the output");
+                    ps.println();
+                }
+            }
+            long t1 = System.nanoTime();
+            try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Output out = new Output(ch, charset);
+                for (int i = 0; i < lines; i++) {
+                    out.print("line ");
+                    out.print(Double.toString(i));
+                    out.print(" of the output");
+                    out.println();
+                }
+                out.flush();
+            }
+            long t2 = System.nanoTime();
+            System.out.printf("run %d: PrintStream %10.0f lines/s   Output %10.0f lines/s%n",
+                run, lines / ((t1 - t0) / 1e9), lines / ((t2 - t1) / 1e9));
+        }
+    }
+}
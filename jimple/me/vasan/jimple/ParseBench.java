@@ -0,0 +1,55 @@
+package me.vasan.jimple;
+
+/*
+ * Parse throughput over a generated script: usage `ParseBench [MB] [runs]`
+ * (default 8 MB, 5 runs). Each run times scanning alone and then
+ * scanning plus parsing, in MB/s and tokens/s. The script repeats a block
+ * of declarations, control flow, calls and object literals, each with
+ * fresh names, so the symbol table grows the way it does in real code.
+ */
+public class ParseBench {
+    static String generate(int bytes) {
+        StringBuilder sb = new StringBuilder(bytes + 512);
+        for (int n = 0; sb.length() < bytes; n++) {
+            sb.append("// block ").append(n).append('\n');
+            sb.append("let f").append(n).append(" = function(a, b) {\n");
+            sb.append("    let t = a * 2 + b / 3 - 1;\n");
+            sb.append("    if (t > 10 && a != b) { t = t - 1; } else { t = t + 1; }\n");
+            sb.append("    while (t < 100 || !a) { t = t + a; }\n");
+            sb.append("    return t;\n");
+            sb.append("};\n");
+            sb.append("let o").append(n).append(" = { x: ").append(n)
+              .append(", y: \"value ").append(n).append("\", z: f").append(n).append("(").append(n).append(", 2.5) };\n");
+            sb.append("print(o").append(n).append(".x >= -1);\n");
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int mb = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String src = generate(mb << 20);
+        double size = src.length() / (double) (1 << 20);
+        System.out.printf("script: %.1f MB%n", size);
+
+        for (int run = 1; run <= runs; run++) {
+            long t0 = System.nanoTime();
+            Scanner scanner = new Scanner(src);
+            TokenBuffer tokens = new TokenBuffer(src, scanner.symbols, 4);
+            do {
+                scanner.scan(tokens);
+            } while (tokens.type(tokens.size - 1) != TT.EOF);
+            long t1 = System.nanoTime();
+            Scanner parsed = new Scanner(src);
+            Pgm ast = new Parser(parsed).parse();
+            long t2 = System.nanoTime();
+            if (parsed.sawError || ast.decls.isEmpty())
+                throw new IllegalStateException("generated script didn't parse");
+
+            double scan = (t1 - t0) / 1e9, parse = (t2 - t1) / 1e9;
+            System.out.printf("run %d: scan %6.1f MB/s %5.2f Mtok/s   scan+parse %6.1f MB/s %5.2f Mtok/s   (%d decls)%n",
+                run, size / scan, tokens.size / scan / 1e6,
+                size / parse, tokens.size / parse / 1e6, ast.decls.size());
+        }
+    }
+}
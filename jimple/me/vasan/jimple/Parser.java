@@ -3,12 +3,32 @@ package me.vasan.jimple;
 import java.util.ArrayList;
 import java.util.List;
 
+import me.vasan.jimple.ParserTrace.Rule;
+
 import static me.vasan.jimple.TT.*;
 
 public class Parser {
-    private final List<Token> tokens;
+    /*
+     * Tokens are scanned into a TokenBuffer as the parser reaches them, and
+     * only the last WINDOW are kept: the grammar never looks back further
+     * than previous() or a single rollback(). A token is its index.
+     */
+    private static final int WINDOW = 4;
+    private final Scanner scanner;
+    private final TokenBuffer tokens;
+    private int end = Integer.MAX_VALUE; // number of tokens, once EOF was scanned
     private int current = 0;
 
+    /*
+     * With -DLazyParse=1 function bodies are only brace-matched, and
+     * parsed when the function is first called (see LazyBody).
+     */
+    static final boolean LAZY = "1".equals(System.getProperty("LazyParse"));
+
+    /* Compiled out unless -DParserDebug is set, see ParserTrace */
+    private static final boolean TRACE = ParserTrace.ENABLED;
+    private final ParserTrace trace;
+
     public Op token_type_to_op(TT t) {
         switch(t) {
             case EQUAL_EQUAL: return Op.EQ;
@@ -28,25 +48,34 @@ public class Parser {
         }
     }
 
-    Token peek() throws EofReached {
-        if (current < size()) {
-            Token t = tokens.get(current);
-            String debugEnabled = System.getProperty("ParserDebug");
-            if (debugEnabled != null && debugEnabled.equals("1"))
-                System.out.println("Peek [" + current + "]: " + t);
-            if (t.type == TT.COMMENT) { 
-                advance();
-                return peek(); 
-            } else 
-                return t;
+    private boolean fill(int i) throws SyntaxError {
+        while (tokens.size <= i && tokens.size < end) {
+            scanner.scan(tokens);
+            if (tokens.type(tokens.size - 1) == TT.EOF)
+                end = tokens.size;
+        }
+        return i < end;
+    }
+
+    private boolean more() throws SyntaxError {
+        return fill(current);
+    }
+
+    TT type(int t) {
+        return tokens.type(t);
+    }
+
+    int peek() throws SyntaxError, EofReached {
+        if (more()) {
+            return current;
         } else {
             throw new EofReached(String.format("%d", current));
         }
     }
 
-    boolean match(TT... types) throws EofReached {
+    boolean match(TT... types) throws SyntaxError, EofReached {
         for (TT t: types) {
-            if (peek().type == t) {
+            if (type(peek()) == t) {
                 advance();
                 return true;
             }
@@ -54,8 +83,8 @@ public class Parser {
         return false;
     }
 
-    boolean consume(TT type) throws EofReached {
-        if (peek().type == type && current < size()) {
+    boolean consume(TT type) throws SyntaxError, EofReached {
+        if (type(peek()) == type && more()) {
             advance();
             return true;
         } else {
@@ -63,106 +92,158 @@ public class Parser {
         }
     }
 
-    Token next() throws EofReached {
-        Token t = peek();
+    int next() throws SyntaxError, EofReached {
+        int t = peek();
         advance();
         return t;
     }
 
-    int size() {
-        return tokens.size();
-    };
-
-    Token previous() {
-        if ((current - 1) >= 0)
-            return tokens.get(current - 1);
-        else 
-            return null;
+    int previous() {
+        return current - 1;
     }
 
     void advance() {
-        String debugEnabled = System.getProperty("ParserDebug");
-        if (debugEnabled != null && debugEnabled.equals("1")) {
-            System.out.println("advance() -> ");
-            (new Exception()).printStackTrace();
-        }
+        if (TRACE) trace.advance(current);
         current++;
     }
 
     void rollback() {
+        if (TRACE) trace.rollback();
         current--;
     }
 
-    Parser(List<Token> tokens) {
+    /* Ends the current rule, returning its result */
+    private <T> T exit(T result) {
+        if (TRACE) trace.exit();
+        return result;
+    }
+
+    /* Tokens are scanned as the parser reaches them */
+    Parser(Scanner scanner) {
+        this.scanner = scanner;
+        this.tokens = new TokenBuffer(scanner.input, scanner.symbols, WINDOW);
+        this.trace = TRACE ? new ParserTrace(tokens) : null;
+    }
+
+    /* Parses tokens that were all scanned already */
+    Parser(TokenBuffer tokens) {
+        this.scanner = null;
         this.tokens = tokens;
+        this.end = tokens.size;
+        this.trace = TRACE ? new ParserTrace(tokens) : null;
+    }
+
+    private Id id(int t) {
+        Id id = new Id(tokens.name(t), tokens.line(t), tokens.col(t));
+        id.global = tokens.symbol(t);
+        return id;
+    }
+
+    private static boolean isUnary(TT type) {
+        return type == TT.BANG || type == TT.MINUS;
+    }
+
+    private static boolean isPrimary(TT type) {
+        return type == TT.TRUE || type == TT.FALSE || type == TT.NIL || type == TT.NUMBER || type == TT.STRING || type == TT.IDENTIFIER;
+    }
+
+    private PrimaryExpr primaryExpr(int t) {
+        switch (type(t)) {
+            case TRUE: return new PrimaryExpr(true);
+            case FALSE: return new PrimaryExpr(false);
+            case NUMBER: return new PrimaryExpr(tokens.number(t));
+            case STRING: return new PrimaryExpr(tokens.text(t));
+            case IDENTIFIER: return new PrimaryExpr(id(t));
+            default: return new PrimaryExpr((Object) null);
+        }
     }
 
     Pgm parse() throws SyntaxError {
         Pgm p = new Pgm();
         p.decls = new ArrayList<Decl>();
         try {
-            while (current < size() && peek().type != TT.EOF) {
+            while (more() && type(peek()) != TT.EOF) {
                 p.decls.add(parse_decl());
                 consume(TT.SEMICOLON);
             }
-        } catch (EofReached e) {}
+        } catch (EofReached e) {
+        } finally {
+            if (TRACE) trace.report();
+        }
         return p;
     }
 
+    /* Parses a function body the scanner was started at, see LazyBody */
+    Stmt parse_body() throws SyntaxError {
+        try {
+            return parse_block_stmt();
+        } catch (EofReached e) {
+            throw new SyntaxError("unterminated function body");
+        } finally {
+            if (TRACE) trace.report();
+        }
+    }
+
     Decl parse_decl() throws SyntaxError, EofReached {
-        Token t = next();
-        if (t.type == LET)
-            return new Decl(parse_var());
+        if (TRACE) trace.enter(Rule.DECL);
+        int t = next();
+        if (type(t) == LET)
+            return exit(new Decl(parse_var()));
         else { 
             rollback();
-            return new Decl(parse_stmt());
+            return exit(new Decl(parse_stmt()));
         }
     }
 
     Var parse_var() throws SyntaxError, EofReached {
-        Token t = next();
-        if (t.type != TT.IDENTIFIER) {
+        if (TRACE) trace.enter(Rule.VAR);
+        int t = next();
+        if (type(t) != TT.IDENTIFIER) {
             throw new SyntaxError("parse_var");
         }
 
-        Id i = new Id(t.lexeme, t.line, t.charPos);
+        Id i = id(t);
         t = next();
 
-        if (t.type == TT.SEMICOLON || t.type == TT.EOF) {
-            return new Var(i);
-        } else if (t.type == TT.EQUAL) {
+        if (type(t) == TT.SEMICOLON || type(t) == TT.EOF) {
+            return exit(new Var(i));
+        } else if (type(t) == TT.EQUAL) {
             Expr e = parse_expr();
-            return new Var(i, e);
+            return exit(new Var(i, e));
         } else {
             throw new SyntaxError("parse_var");
         }
     }
 
     Stmt parse_stmt() throws SyntaxError, EofReached {
-        Token t = next();
+        if (TRACE) trace.enter(Rule.STMT);
+        int t = next();
         Stmt s = null;
-        switch (t.type) {
+        switch (type(t)) {
             case IF: s = parse_if_stmt(); break;
             case WHILE: s = parse_while_stmt(); break;
             case RETURN: s = parse_return_stmt(); break;
+            case BREAK: consume(SEMICOLON); s = new Stmt(StmtType.BREAK_STMT); break;
+            case CONTINUE: consume(SEMICOLON); s = new Stmt(StmtType.CONTINUE_STMT); break;
             case LEFT_BRACE: rollback(); s = parse_block_stmt(); break;
             default: { rollback(); s = parse_expr_stmt(); }
         }
-        return s;
+        return exit(s);
     }
 
     Stmt parse_if_stmt() throws SyntaxError, EofReached {
-        Token t = next(); Expr cond = null; Stmt then = null; Stmt alt = null;
-        if (t.type == TT.LEFT_PAREN) {
+        if (TRACE) trace.enter(Rule.IF);
+        int t = next(); Expr cond = null; Stmt then = null; Stmt alt = null;
+        if (type(t) == TT.LEFT_PAREN) {
             cond = parse_expr(); t = next();
-            if (t.type == TT.RIGHT_PAREN) {
+            if (type(t) == TT.RIGHT_PAREN) {
                 then = parse_stmt();
                 t = peek();
-                if (t.type == TT.ELSE) {
+                if (type(t) == TT.ELSE) {
                     advance(); alt = parse_stmt();
-                    return new Stmt(new IfStmt(cond, then, alt));
+                    return exit(new Stmt(new IfStmt(cond, then, alt)));
                 } else {
-                    return new Stmt(new IfStmt(cond, then));
+                    return exit(new Stmt(new IfStmt(cond, then)));
                 }
             } else {
                 throw new SyntaxError("parse_if_stmt");
@@ -173,13 +254,14 @@ public class Parser {
     }
 
     Stmt parse_while_stmt() throws SyntaxError, EofReached {
-        Token t = next(); Expr cond = null; Stmt then = null;
-        if (t.type == TT.LEFT_PAREN) {
+        if (TRACE) trace.enter(Rule.WHILE);
+        int t = next(); Expr cond = null; Stmt then = null;
+        if (type(t) == TT.LEFT_PAREN) {
             cond = parse_expr();
             t = next();
-            if (t.type == TT.RIGHT_PAREN) {
+            if (type(t) == TT.RIGHT_PAREN) {
                 then = parse_stmt();
-                return new Stmt(new WhileStmt(cond, then));
+                return exit(new Stmt(new WhileStmt(cond, then)));
             } else {
                 throw new SyntaxError("parse_while_stmt");
             }
@@ -189,13 +271,14 @@ public class Parser {
     }
 
     Stmt parse_return_stmt() throws SyntaxError, EofReached {
-        Token t = peek(); Expr e = null;
-        if (t.type == TT.SEMICOLON) {
-            advance(); return new Stmt(new ReturnStmt());
+        if (TRACE) trace.enter(Rule.RETURN);
+        int t = peek(); Expr e = null;
+        if (type(t) == TT.SEMICOLON) {
+            advance(); return exit(new Stmt(new ReturnStmt()));
         } else {
             e = parse_expr(); t = peek();
-            if (t.type == TT.SEMICOLON) {
-                advance(); return new Stmt(new ReturnStmt(e));
+            if (type(t) == TT.SEMICOLON) {
+                advance(); return exit(new Stmt(new ReturnStmt(e)));
             } else {
                 throw new SyntaxError("parse_return_stmt");
             }
@@ -203,28 +286,30 @@ public class Parser {
     }
 
     Stmt parse_block_stmt() throws SyntaxError, EofReached {
+        if (TRACE) trace.enter(Rule.BLOCK);
         if (!consume(LEFT_BRACE))
             throw new SyntaxError("parse_block_stmt");
         List<Decl> decls = new ArrayList<Decl>();
 
-        while (peek().type != TT.RIGHT_BRACE && current < size()) {
+        while (type(peek()) != TT.RIGHT_BRACE && more()) {
             decls.add(parse_decl());
             consume(TT.SEMICOLON);
         }
 
-        if (peek().type == TT.RIGHT_BRACE && current < size())
+        if (type(peek()) == TT.RIGHT_BRACE && more())
             advance();
 
-        return new Stmt(new BlockStmt(decls));
+        return exit(new Stmt(new BlockStmt(decls)));
     }
 
     Stmt parse_expr_stmt() throws SyntaxError, EofReached {
+        if (TRACE) trace.enter(Rule.EXPR_STMT);
         Expr e = parse_expr();
-        Token t = peek();
-        if (t.type == TT.SEMICOLON || t.type == TT.RETURN || t.type == TT.EOF) {
-            advance(); return new Stmt(new ExprStmt(e));
+        int t = peek();
+        if (type(t) == TT.SEMICOLON || type(t) == TT.RETURN || type(t) == TT.EOF) {
+            advance(); return exit(new Stmt(new ExprStmt(e)));
         /* uncomment for implicit return of last expression w/o semi-colon
-        } else if (t.type == TT.RIGHT_BRACE) {
+        } else if (type(t) == TT.RIGHT_BRACE) {
             return new Stmt(new ExprStmt(e)); 
         */
         } else {
@@ -233,137 +318,177 @@ public class Parser {
     }
 
     Expr parse_expr() throws SyntaxError, EofReached {
-        return assign_expr();
+        if (TRACE) trace.enter(Rule.EXPR);
+        return exit(assign_expr());
     }
 
     Expr assign_expr() throws SyntaxError, EofReached {
-        Token t = peek();
-        if (t.type == TT.IDENTIFIER) {
-            advance(); Token t_ = peek();
-            if (t_.type == TT.EQUAL) {
+        if (TRACE) trace.enter(Rule.ASSIGN);
+        int t = peek();
+        if (type(t) == TT.IDENTIFIER) {
+            advance(); int t_ = peek();
+            if (type(t_) == TT.EQUAL) {
                 advance();
-                return new Expr(
+                return exit(new Expr(
                     new AssignExpr(
-                        new Id(t.lexeme, t.line, t.charPos),
-                        assign_expr()));
+                        id(t),
+                        assign_expr())));
             } else {
-                rollback(); // function calls
-                return logic_or();
+                rollback(); // function calls, indexing
             }
         }
-        return logic_or();
+        Expr expr = logic_or();
+        if (expr.type == ExprType.INDEX && type(peek()) == TT.EQUAL) {
+            advance();
+            return exit(new Expr(new IndexAssignExpr(expr.ie.array, expr.ie.index, assign_expr())));
+        }
+        return exit(expr);
     }
 
     Expr logic_or() throws SyntaxError, EofReached {
+        if (TRACE) trace.enter(Rule.OR);
         Expr expr = logic_and();
 
         while (match(OR)) {
-            Token op = previous();
+            TT op = type(previous());
             Expr right = logic_and();
-            expr = new Expr(new BinaryExpr(expr, right, token_type_to_op(op.type)));
+            expr = new Expr(new BinaryExpr(expr, right, token_type_to_op(op)));
         }
 
-        return expr;
+        return exit(expr);
     }
 
     Expr logic_and() throws SyntaxError, EofReached {
+        if (TRACE) trace.enter(Rule.AND);
         Expr expr = equality();
 
         while (match(AND)) {
-            Token op = previous();
+            TT op = type(previous());
             Expr right = equality();
-            expr = new Expr(new BinaryExpr(expr, right, token_type_to_op(op.type)));
+            expr = new Expr(new BinaryExpr(expr, right, token_type_to_op(op)));
         }
 
-        return expr;
+        return exit(expr);
     }
 
     Expr equality() throws SyntaxError, EofReached {
+        if (TRACE) trace.enter(Rule.EQUALITY);
         Expr expr = comparison();
 
         while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token op = previous();
+            TT op = type(previous());
             Expr right = comparison();
-            expr = new Expr(new BinaryExpr(expr, right, token_type_to_op(op.type)));
+            expr = new Expr(new BinaryExpr(expr, right, token_type_to_op(op)));
         }
 
-        return expr;
+        return exit(expr);
     }
 
     Expr comparison() throws SyntaxError, EofReached {
+        if (TRACE) trace.enter(Rule.COMPARISON);
         Expr expr = term();
 
         while (match(GREATER, GREATER_EQUAL, LESSER, LESSER_EQUAL)) {
-            Token op = previous();
+            TT op = type(previous());
             Expr right = term();
-            expr = new Expr(new BinaryExpr(expr, right, token_type_to_op(op.type)));
+            expr = new Expr(new BinaryExpr(expr, right, token_type_to_op(op)));
         }
 
-        return expr;
+        return exit(expr);
     }
 
     Expr term() throws SyntaxError, EofReached {
+        if (TRACE) trace.enter(Rule.TERM);
         Expr expr = factor();
 
         while (match(PLUS, MINUS)) {
-            Token op = previous();
+            TT op = type(previous());
             Expr right = factor();
-            expr = new Expr(new BinaryExpr(expr, right, token_type_to_op(op.type)));
+            expr = new Expr(new BinaryExpr(expr, right, token_type_to_op(op)));
         }
 
-        return expr;
+        return exit(expr);
     }
 
     Expr factor() throws SyntaxError, EofReached {
+        if (TRACE) trace.enter(Rule.FACTOR);
         Expr expr = unary();
 
         while (match(STAR, SLASH)) {
-            Token op = previous();
+            TT op = type(previous());
             Expr right = unary();
-            expr = new Expr(new BinaryExpr(expr, right, token_type_to_op(op.type)));
+            expr = new Expr(new BinaryExpr(expr, right, token_type_to_op(op)));
         }
 
-        return expr;
+        return exit(expr);
     }
 
     Expr unary() throws SyntaxError, EofReached {
-        Token t = peek();
-        if (t.isUnary()) {
+        if (TRACE) trace.enter(Rule.UNARY);
+        int t = peek();
+        if (isUnary(type(t))) {
             advance();
-            return new Expr(new UnaryExpr(unary(), token_type_to_op(t.type)));
+            Op o = type(t) == TT.MINUS ? Op.NEG : token_type_to_op(type(t));
+            return exit(new Expr(new UnaryExpr(unary(), o)));
         } else {
-            return function();
+            return exit(function());
         }
     }
 
     Expr function() throws SyntaxError, EofReached {
-        Token t = peek();
-        if (t.type == TT.FUNCTION) {
+        if (TRACE) trace.enter(Rule.FUNCTION);
+        int t = peek();
+        if (type(t) == TT.FUNCTION) {
             ArrayList<Id> args = new ArrayList<Id>();
             advance();
             consume(LEFT_PAREN);
-            while (peek().type != RIGHT_PAREN) {
+            while (type(peek()) != RIGHT_PAREN) {
                 // TODO: what if it's not an Id?
-                Token t_ = next();
-                args.add(new Id(t_.lexeme, t_.line, t_.charPos));
-                if (peek().type == COMMA)
+                int t_ = next();
+                args.add(id(t_));
+                if (type(peek()) == COMMA)
                     consume(COMMA);
             }
             consume(RIGHT_PAREN);
+            if (LAZY) {
+                FunctionExpr fe = new FunctionExpr(args, null);
+                fe.lazy = skip_block();
+                return exit(new Expr(fe));
+            }
             Stmt s = parse_block_stmt();
-            return new Expr(new FunctionExpr(args, s));
+            return exit(new Expr(new FunctionExpr(args, s)));
         } else {
-            return call();
+            return exit(call());
         }
     }
 
+    /* Steps over a { ... } block, matching braces */
+    private LazyBody skip_block() throws SyntaxError, EofReached {
+        int t = peek();
+        if (type(t) != LEFT_BRACE)
+            throw new SyntaxError("parse_block_stmt");
+        LazyBody body = new LazyBody(tokens.source, tokens.symbols, tokens.offset(t), tokens.line(t), tokens.col(t));
+        int depth = 0;
+        do {
+            t = next();
+            if (type(t) == LEFT_BRACE)
+                depth++;
+            else if (type(t) == RIGHT_BRACE)
+                depth--;
+            else if (type(t) == EOF)
+                throw new SyntaxError("unterminated function body");
+        } while (depth > 0);
+        return body;
+    }
+
     Expr call() throws SyntaxError, EofReached {
+        if (TRACE) trace.enter(Rule.CALL);
         Expr expr = primary();
         
         while (true) {
             if (match(LEFT_PAREN)) {
                 ArrayList<Expr> args = new ArrayList<Expr>();
-                if (peek().type != RIGHT_PAREN) {
+                if (type(peek()) != RIGHT_PAREN) {
                     do {
                         args.add(parse_expr());
                     } while (match(COMMA));
@@ -376,55 +501,112 @@ public class Parser {
                     throw new SyntaxError("Can only call functions");
                 }
             } else if (match(DOT)) {
-                Token propertyToken = peek();
-                if (propertyToken.type != IDENTIFIER) {
+                int propertyToken = peek();
+                if (type(propertyToken) != IDENTIFIER) {
                     throw new SyntaxError("Expected property name after '.'");
                 }
                 advance();
-                expr = new Expr(new PropertyAccessExpr(expr, propertyToken.lexeme));
+                expr = new Expr(new PropertyAccessExpr(expr, tokens.name(propertyToken)));
+            } else if (match(LEFT_BRACKET)) {
+                Expr index = parse_expr();
+                consume(RIGHT_BRACKET);
+                expr = new Expr(new IndexExpr(expr, index));
             } else {
                 break;
             }
         }
         
-        return expr;
+        return exit(expr);
     }
 
     Expr primary() throws SyntaxError, EofReached {
-        Token t = peek();
-        if (t.isPrimary()) {
+        if (TRACE) trace.enter(Rule.PRIMARY);
+        int t = peek();
+        if (isPrimary(type(t))) {
             advance();
-            return new Expr(new PrimaryExpr(t));
-        } else if (t.type == LEFT_BRACE) {
-            return parseObject();
+            return exit(new Expr(primaryExpr(t)));
+        } else if (type(t) == LEFT_BRACE) {
+            return exit(parseObject());
+        } else if (type(t) == LEFT_BRACKET) {
+            return exit(parseArray());
         } else {
             throw new SyntaxError("primary");
         }
     }
 
     Expr parseObject() throws SyntaxError, EofReached {
+        if (TRACE) trace.enter(Rule.OBJECT);
         consume(LEFT_BRACE);
         
         ArrayList<String> keys = new ArrayList<>();
         ArrayList<Expr> values = new ArrayList<>();
         
-        if (peek().type != RIGHT_BRACE) {
+        if (type(peek()) != RIGHT_BRACE) {
             do {
-                Token keyToken = peek();
-                if (keyToken.type != IDENTIFIER) {
+                int keyToken = peek();
+                if (type(keyToken) != IDENTIFIER) {
                     throw new SyntaxError("Expected property name");
                 }
                 advance();
                 
                 consume(COLON);
                 
-                keys.add(keyToken.lexeme);
+                keys.add(tokens.name(keyToken));
                 values.add(parse_expr());
                 
             } while (match(COMMA));
         }
         
         consume(RIGHT_BRACE);
-        return new Expr(new ObjectExpr(keys, values));
+        return exit(new Expr(new ObjectExpr(keys, values)));
+    }
+
+    Expr parseArray() throws SyntaxError, EofReached {
+        if (TRACE) trace.enter(Rule.ARRAY);
+        consume(LEFT_BRACKET);
+
+        ArrayList<Expr> values = new ArrayList<>();
+        if (type(peek()) != RIGHT_BRACKET) {
+            do {
+                values.add(parse_expr());
+            } while (match(COMMA));
+        }
+
+        consume(RIGHT_BRACKET);
+        return exit(new Expr(new ArrayExpr(values)));
+    }
+}
+
+/*
+ * A function body the parser only brace-matched. Its tokens aren't kept:
+ * on the first call the body is scanned again from its '{', optimized,
+ * and resolved against the scope the Resolver saved where the function
+ * was defined.
+ */
+final class LazyBody {
+    private final CharSequence source;
+    private final Symbols symbols;
+    private final int offset, line, col;
+    Resolver.Scope scope; // set by the Resolver
+
+    LazyBody(CharSequence source, Symbols symbols, int offset, int line, int col) {
+        this.source = source;
+        this.symbols = symbols;
+        this.offset = offset;
+        this.line = line;
+        this.col = col;
+    }
+
+    /* fe's body, resolved; functions share symbols, so one is parsed at a time */
+    Stmt parse(FunctionExpr fe) throws SyntaxError {
+        if (scope == null)
+            throw new IllegalStateException("function body needed before resolution");
+        Stmt body;
+        synchronized (symbols) {
+            Parser p = new Parser(new Scanner(source, symbols, offset, line, col));
+            body = new Optimizer().body(p.parse_body());
+        }
+        new Resolver().resolve(fe, body, scope);
+        return body;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,104 @@
+package me.vasan.jimple;
+
+/*
+ * Parser instrumentation. -DParserDebug=1 counts each grammar rule's
+ * entries and rollbacks and times it, and prints a table to stderr when
+ * the parse ends; -DParserDebug=2 also prints every token as it is
+ * consumed, indented by rule depth. The parser tests ENABLED, a static
+ * final, before each hook, so when tracing is off the JIT folds the
+ * hooks away and parsing pays nothing for them.
+ */
+final class ParserTrace {
+    static final int LEVEL = Integer.getInteger("ParserDebug", 0);
+    static final boolean ENABLED = LEVEL > 0;
+
+    enum Rule {
+        DECL("parse_decl"), VAR("parse_var"), STMT("parse_stmt"),
+        IF("parse_if_stmt"), WHILE("parse_while_stmt"), RETURN("parse_return_stmt"),
+        BLOCK("parse_block_stmt"), EXPR_STMT("parse_expr_stmt"), EXPR("parse_expr"),
+        ASSIGN("assign_expr"), OR("logic_or"), AND("logic_and"), EQUALITY("equality"),
+        COMPARISON("comparison"), TERM("term"), FACTOR("factor"), UNARY("unary"),
+        FUNCTION("function"), CALL("call"), PRIMARY("primary"), OBJECT("parseObject"),
+        ARRAY("parseArray");
+
+        final String method;
+
+        Rule(String method) { this.method = method; }
+    }
+
+    private static final Rule[] RULES = Rule.values();
+
+    private final TokenBuffer tokens;
+    private final long[] entries = new long[RULES.length];
+    private final long[] rollbacks = new long[RULES.length];
+    private final long[] self = new long[RULES.length]; // ns, excluding nested rules
+    private final long[] total = new long[RULES.length]; // ns, including them
+
+    /* The rules being parsed, innermost last */
+    private int[] stack = new int[64];
+    private long[] started = new long[64];
+    private long[] nested = new long[64]; // ns spent in the rules each one called
+    private int depth = 0;
+    private final long begin = System.nanoTime();
+
+    ParserTrace(TokenBuffer tokens) {
+        this.tokens = tokens;
+    }
+
+    void enter(Rule r) {
+        if (depth == stack.length) {
+            stack = java.util.Arrays.copyOf(stack, depth * 2);
+            started = java.util.Arrays.copyOf(started, depth * 2);
+            nested = java.util.Arrays.copyOf(nested, depth * 2);
+        }
+        entries[r.ordinal()]++;
+        stack[depth] = r.ordinal();
+        nested[depth] = 0;
+        started[depth++] = System.nanoTime();
+    }
+
+    void exit() {
+        long elapsed = System.nanoTime() - started[--depth];
+        int r = stack[depth];
+        total[r] += elapsed;
+        self[r] += elapsed - nested[depth];
+        if (depth > 0)
+            nested[depth - 1] += elapsed;
+    }
+
+    /* Closes the rules an exception unwound through */
+    void unwind() {
+        while (depth > 0)
+            exit();
+    }
+
+    void rollback() {
+        if (depth > 0)
+            rollbacks[stack[depth - 1]]++;
+    }
+
+    void advance(int token) {
+        if (LEVEL < 2 || token >= tokens.size)
+            return;
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < depth; i++)
+            line.append("  ");
+        line.append(depth > 0 ? RULES[stack[depth - 1]].method : "-");
+        line.append(" [").append(token).append("] ").append(tokens.toString(token).trim());
+        System.err.println(line);
+    }
+
+    void report() {
+        unwind();
+        long elapsed = System.nanoTime() - begin;
+        System.err.printf("parser: %d tokens in %.3f ms%n", tokens.size, elapsed / 1e6);
+        System.err.printf("%-18s %10s %10s %10s %10s%n", "rule", "entries", "rollbacks", "self ms", "total ms");
+        for (Rule r: RULES) {
+            int i = r.ordinal();
+            if (entries[i] == 0)
+                continue;
+            System.err.printf("%-18s %10d %10d %10.3f %10.3f%n",
+                r.method, entries[i], rollbacks[i], self[i] / 1e6, total[i] / 1e6);
+        }
+    }
+}
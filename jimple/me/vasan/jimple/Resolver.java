@@ -0,0 +1,215 @@
+package me.vasan.jimple;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Static resolution pass. Annotates every Id with (depth, slot): depth is
+ * the number of frames to hop up from the current one, slot is the index
+ * into that frame. Blocks are flattened into the frame of the enclosing
+ * function (or the script). Top-level `let`s and names that aren't found
+ * keep depth -1 and are looked up by name in the root Environment.
+ */
+public class Resolver {
+    static final class Scope {
+        final Scope enclosing;
+        final FunctionExpr fe;
+        final List<Map<String, Integer>> blocks = new ArrayList<>();
+        int nslots = 0;
+        int loops = 0; // enclosing while loops, for break/continue
+
+        Scope(Scope enclosing, FunctionExpr fe) {
+            this.enclosing = enclosing;
+            this.fe = fe;
+        }
+
+        int declare(String name) {
+            int slot = nslots++;
+            blocks.get(blocks.size() - 1).put(name, slot);
+            return slot;
+        }
+
+        Integer lookup(String name) {
+            for (int i = blocks.size() - 1; i >= 0; i--) {
+                Integer slot = blocks.get(i).get(name);
+                if (slot != null) return slot;
+            }
+            return null;
+        }
+    }
+
+    private Scope scope;
+
+    void resolve(Pgm ast) throws SyntaxError {
+        scope = new Scope(null, null);
+        for (Decl d: ast.decls)
+            resolve(d);
+        ast.nslots = scope.nslots;
+        scope = null;
+    }
+
+    private void resolve(Decl d) throws SyntaxError {
+        if (d.type == DeclType.VAR) {
+            Var v = d.var;
+            if (v.rvalue != null && v.rvalue.type == ExprType.FUNCTION)
+                v.rvalue.fe.name = v.id.name;
+            if (scope.blocks.isEmpty()) { // global
+                if (v.rvalue != null) resolve(v.rvalue);
+                v.id.depth = -1;
+                return;
+            }
+            // functions may refer to themselves
+            boolean fn = v.rvalue != null && v.rvalue.type == ExprType.FUNCTION;
+            if (fn) declare(v.id);
+            if (v.rvalue != null) resolve(v.rvalue);
+            if (!fn) declare(v.id);
+        } else {
+            resolve(d.stmt);
+        }
+    }
+
+    private void resolve(Stmt s) throws SyntaxError {
+        switch (s.type) {
+            case EXPR_STMT: resolve(s.e.e); break;
+            case IF_STMT:
+                resolve(s.i.cond);
+                resolve(s.i.then);
+                if (s.i.alt != null) resolve(s.i.alt);
+                break;
+            case WHILE_STMT:
+                resolve(s.w.cond);
+                scope.loops++;
+                resolve(s.w.then);
+                scope.loops--;
+                break;
+            case BREAK_STMT:
+            case CONTINUE_STMT:
+                if (scope.loops == 0)
+                    throw new SyntaxError(s.type == StmtType.BREAK_STMT ? "break outside of loop" : "continue outside of loop");
+                break;
+            case RETURN_STMT:
+                if (s.r.expr != null) resolve(s.r.expr);
+                if (scope.fe != null && s.r.expr != null && s.r.expr.type == ExprType.CALL)
+                    s.r.expr.ce.tail = true;
+                break;
+            case BLOCK_STMT:
+                scope.blocks.add(new HashMap<>());
+                for (Decl d: s.b.decls)
+                    resolve(d);
+                scope.blocks.remove(scope.blocks.size() - 1);
+                break;
+        }
+    }
+
+    private void resolve(Expr e) throws SyntaxError {
+        switch (e.type) {
+            case PRIMARY:
+                if (e.pe.type == PrimaryType.ID) resolve(e.pe.id);
+                break;
+            case BINARY_EXPR:
+                resolve(e.b.lhs);
+                resolve(e.b.rhs);
+                break;
+            case UNARY:
+                resolve(e.ue.e);
+                break;
+            case CALL:
+                resolve(e.ce.id);
+                for (Expr arg: e.ce.a)
+                    resolve(arg);
+                break;
+            case FUNCTION:
+                resolve(e.fe);
+                break;
+            case ASSIGN_EXPR:
+                resolve(e.a.e);
+                resolve(e.a.id);
+                break;
+            case OBJECT:
+                for (Expr v: e.oe.values)
+                    resolve(v);
+                break;
+            case PROPERTY_ACCESS:
+                resolve(e.pae.object);
+                break;
+            case ARRAY:
+                for (Expr v: e.ae.values)
+                    resolve(v);
+                break;
+            case INDEX:
+                resolve(e.ie.array);
+                resolve(e.ie.index);
+                break;
+            case INDEX_ASSIGN:
+                resolve(e.iae.array);
+                resolve(e.iae.index);
+                resolve(e.iae.e);
+                break;
+        }
+    }
+
+    /* Resolves a lazily parsed body in the scope its function was defined in */
+    void resolve(FunctionExpr fe, Stmt body, Scope defined) throws SyntaxError {
+        scope = defined;
+        body(fe, body);
+        scope = null;
+    }
+
+    private void resolve(FunctionExpr fe) throws SyntaxError {
+        if (scope.fe != null)
+            scope.fe.captures = true;
+        fe.captures = false;
+        if (fe.b == null) {
+            fe.lazy.scope = freeze(scope);
+            return;
+        }
+        body(fe, fe.b);
+    }
+
+    /*
+     * A copy of the names visible in s and the scopes around it. Later
+     * declarations must not show up in a body that is resolved after them.
+     */
+    private static Scope freeze(Scope s) {
+        if (s == null)
+            return null;
+        Scope copy = new Scope(freeze(s.enclosing), s.fe);
+        if (!s.blocks.isEmpty()) {
+            Map<String, Integer> visible = new HashMap<>();
+            for (Map<String, Integer> block: s.blocks)
+                visible.putAll(block);
+            copy.blocks.add(visible);
+        }
+        return copy;
+    }
+
+    private void body(FunctionExpr fe, Stmt body) throws SyntaxError {
+        scope = new Scope(scope, fe);
+        scope.blocks.add(new HashMap<>());
+        for (Id param: fe.a)
+            declare(param);
+        resolve(body);
+        fe.nslots = scope.nslots;
+        scope = scope.enclosing;
+    }
+
+    private void declare(Id id) {
+        id.depth = 0;
+        id.slot = scope.declare(id.name);
+    }
+
+    private void resolve(Id id) {
+        int depth = 0;
+        for (Scope s = scope; s != null; s = s.enclosing, depth++) {
+            Integer slot = s.lookup(id.name);
+            if (slot != null) {
+                id.depth = depth;
+                id.slot = slot;
+                return;
+            }
+        }
+        id.depth = -1;
+    }
+}
@@ -0,0 +1,13 @@
+package me.vasan.jimple;
+
+/* A script failed while running; message says why */
+public class RuntimeError extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final String message;
+
+    public RuntimeError(String message) {
+        super(message);
+        this.message = message;
+    }
+}
@@ -1,15 +1,16 @@
 package me.vasan.jimple;
 
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 
 /* liberally "borrowed" from jlox (craftinginterpreters.com) */
 
 /* tokens in our language */
 /*
-    ( ) { }
+    ( ) { } [ ]
     & | ^ , . - + ; / * ~ %
 
     && || !
@@ -19,23 +20,13 @@ import java.util.Map;
     id, "foobar", 3829e+23
 
     else false function if nil
-    return true let while
+    return true let while break continue
 
     eof
 
     // to eof is a comment
 */
 
-class RuntimeError extends Exception {
-    String message;
-    RuntimeError(String s) { this.message = s;}
-}
-
-class SyntaxError extends Exception {
-    String message;
-    SyntaxError(String s) { this.message = s;}
-}
-
 // bleh
 class EofReached extends Exception {
     String message;
@@ -44,7 +35,7 @@ class EofReached extends Exception {
 
 enum TT {
     /* single char */
-    LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, AMP, PIPE, HAT,
+    LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, LEFT_BRACKET, RIGHT_BRACKET, AMP, PIPE, HAT,
     COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR, TILDE, MOD, COLON,
 
     /* multi-char */
@@ -58,7 +49,7 @@ enum TT {
     IDENTIFIER, STRING, NUMBER,
 
     ELSE, FALSE, FUNCTION, IF, NIL,
-    RETURN, TRUE, LET, WHILE,
+    RETURN, TRUE, LET, WHILE, BREAK, CONTINUE,
 
     COMMENT, EOF;
 }
@@ -91,48 +82,100 @@ class Token {
     }
 }
 
-public class Scanner {
-    final String input;
-    final List<Token> tokens = new ArrayList<>();
-    private static final Map<String, TT> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    TT.AND);
-        keywords.put("else",   TT.ELSE);
-        keywords.put("false",  TT.FALSE);
-        keywords.put("function", TT.FUNCTION);
-        keywords.put("if",     TT.IF);
-        keywords.put("nil",    TT.NIL);
-        keywords.put("or",     TT.OR);
-        keywords.put("return", TT.RETURN);
-        keywords.put("true",   TT.TRUE);
-        keywords.put("let",    TT.LET);
-        keywords.put("while",  TT.WHILE);
+/*
+ * Script source read straight out of a (memory-mapped) buffer. Everything
+ * outside string literals and comments is ASCII, so bytes are handed to
+ * the Scanner as chars and only the lexemes it asks for get decoded.
+ */
+class ByteSource implements CharSequence {
+    private final ByteBuffer bytes;
+    private final Charset charset;
+
+    ByteSource(ByteBuffer bytes, Charset charset) {
+        this.bytes = bytes;
+        this.charset = charset;
+    }
+
+    public int length() {
+        return bytes.limit();
     }
 
+    public char charAt(int i) {
+        return (char) (bytes.get(i) & 0xff);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        byte[] b = new byte[end - start];
+        bytes.get(start, b);
+        return new String(b, charset);
+    }
+
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+}
+
+/*
+ * Tokens are produced one at a time: scan() appends the next one to a
+ * TokenBuffer, which is what the Parser reads, so the Parser can consume
+ * them as they are scanned. next() and scanTokens() give Token objects.
+ */
+public class Scanner {
+    final CharSequence input;
+    final Symbols symbols;
+    private final PrintStream err; // where errors are reported
+    boolean sawError = false;
+
+    /* the token scanToken() just produced; tokType is null until then */
+    private TT tokType;
+    private int tokOff, tokLen, tokLine, tokCol, tokSym;
+    private double tokNum;
+
     private int start = 0;
     private int current = 0;
     private int line = 0;
     private int charPos = 0;
 
-    Scanner(String input)
+    Scanner(CharSequence input)
+    {
+        this(input, System.err);
+    }
+
+    Scanner(CharSequence input, PrintStream err)
     {
         this.input = input;
+        this.symbols = new Symbols();
+        this.err = err;
+    }
+
+    /* Scans input from offset, where a token at line and col starts */
+    Scanner(CharSequence input, Symbols symbols, int offset, int line, int col)
+    {
+        this.input = input;
+        this.symbols = symbols;
+        this.current = offset;
+        this.line = line;
+        this.charPos = col - 1;
+        this.err = System.err; // the first scan already reported its errors
+    }
+
+    private void error(int line, int charPos, String msg) {
+        Jimple.report(err, line, charPos, msg, Jimple.RType.error);
+        sawError = true;
     }
 
     private void addToken(TT type)
     {
-        addToken(type, null);
+        token(type, start, current - start, -1);
     }
 
-    private void addToken(TT type, Object literal) {
-        String text = null;
-        if (literal != null)
-            text = literal.toString();
-        else
-            text = input.substring(start, current);
-        tokens.add(new Token(type, text, literal, line, charPos));
+    private void token(TT type, int off, int len, int sym) {
+        tokType = type;
+        tokOff = off;
+        tokLen = len;
+        tokLine = line;
+        tokCol = charPos;
+        tokSym = sym;
     }
 
     private boolean match(char expected) {
@@ -159,11 +202,10 @@ public class Scanner {
         }
 
         if (current == input.length()) {
-            Jimple.report(line, charPos, "Unterminated string", Jimple.RType.error);
+            error(line, charPos, "Unterminated string");
         }
         current++;
-        String value = input.substring(start + 1, current - 1);
-        addToken(TT.STRING, value);
+        token(TT.STRING, start + 1, current - start - 2, -1);
     }
 
     private boolean isAtEnd() {
@@ -213,10 +255,10 @@ public class Scanner {
         }
 
         try {
-            addToken(TT.NUMBER,
-                    Double.parseDouble(input.substring(start, current)));
+            tokNum = Double.parseDouble(input.subSequence(start, current).toString());
+            addToken(TT.NUMBER);
         } catch(NumberFormatException nfe) {
-            Jimple.report(line, charPos, "Bad number", Jimple.RType.error);
+            error(line, charPos, "Bad number");
         }
     }
 
@@ -234,11 +276,9 @@ public class Scanner {
         while (isAlphaNumeric(peek())) advance();
 
         // See if the identifier is a reserved word.
-        String text = input.substring(start, current);
-
-        TT type = keywords.get(text);
-        if (type == null) type = TT.IDENTIFIER;
-        addToken(type); charPos += current-start-1;
+        int id = symbols.intern(input, start, current - start);
+        token(symbols.type(id), start, current - start, id);
+        charPos += current-start-1;
     }
 
     private void scanToken() throws SyntaxError
@@ -252,6 +292,8 @@ public class Scanner {
             case ')': addToken(TT.RIGHT_PAREN); break;
             case '{': addToken(TT.LEFT_BRACE); break;
             case '}': addToken(TT.RIGHT_BRACE); break;
+            case '[': addToken(TT.LEFT_BRACKET); break;
+            case ']': addToken(TT.RIGHT_BRACKET); break;
             case ',': addToken(TT.COMMA); break;
             case '.': addToken(TT.DOT); break;
             case '-': addToken(TT.MINUS); break;
@@ -332,23 +374,68 @@ public class Scanner {
                 if (isAlpha(c))
                     identifier();
                 else {
-                    Jimple.report(line, charPos, "Unexpected character: " + c, Jimple.RType.error);
+                    error(line, charPos, "Unexpected character: " + c);
                     throw new SyntaxError("Unexpected character");
                 }
         }
     }
 
+    /* Scans up to the next token, EOF once the input is used up */
+    private TT pull() throws SyntaxError
+    {
+        tokType = null;
+        while (tokType == null) {
+            if (current >= input.length()) {
+                token(TT.EOF, current, 0, -1);
+                break;
+            }
+            start = current;
+            scanToken();
+        }
+        return tokType;
+    }
+
+    /* Appends the next token other than a comment to buf */
+    void scan(TokenBuffer buf) throws SyntaxError
+    {
+        while (pull() == TT.COMMENT)
+            ;
+        buf.add(tokType, tokOff, tokLen, tokLine, tokCol, tokSym, tokNum);
+    }
+
+    /* All the tokens, up to and including EOF */
+    TokenBuffer scanAll() throws SyntaxError
+    {
+        TokenBuffer buf = new TokenBuffer(input, symbols, 0);
+        do {
+            scan(buf);
+        } while (buf.type(buf.size - 1) != TT.EOF);
+        buf.trim();
+        return buf;
+    }
+
+    Token next() throws SyntaxError
+    {
+        TT type = pull();
+        Object literal = type == TT.NUMBER ? (Object) tokNum : null;
+        String text = input.subSequence(tokOff, tokOff + tokLen).toString();
+        if (type == TT.STRING)
+            literal = text;
+        return new Token(type, literal != null ? literal.toString() : text, literal, tokLine, tokCol);
+    }
+
     List<Token> scanTokens() throws SyntaxError
     {
         try {
-            while (current < input.length()) {
-                start = current;
-                scanToken();
-            }
-            tokens.add(new Token(TT.EOF, "", null, line, charPos));
+            List<Token> tokens = new ArrayList<>();
+            Token t;
+            do {
+                t = next();
+                tokens.add(t);
+            } while (t.type != TT.EOF);
             return tokens;
         } catch(SyntaxError s) {
-            Jimple.report(-1, -1, "Syntax Errors Found", Jimple.RType.error);
+            error(-1, -1, "Syntax Errors Found");
             return null;
         }
     }
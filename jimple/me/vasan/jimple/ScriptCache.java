@@ -0,0 +1,539 @@
+package me.vasan.jimple;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+ * On-disk cache of optimized, resolved programs, so running an unchanged
+ * script skips scanning, parsing, optimizing and resolving. An entry is
+ * named by a 128-bit hash (MurmurHash3, x64 variant) of the interpreter
+ * version, the charset and the script's bytes, and holds:
+ *
+ *   magic, FORMAT, SIMPLE_VERSION, key, source length, payload length,
+ *   payload CRC32, payload = string table, then the Pgm (see Writer)
+ *
+ * The hash isn't cryptographic: the cache only guards against running a
+ * stale program, and MessageDigest's provider setup alone would cost a
+ * small script more than parsing it.
+ *
+ * Entries are mapped and checked field by field, and a payload that
+ * doesn't decode cleanly is a miss, so a stale or damaged entry is
+ * parsed again and overwritten. New entries are written to a temporary
+ * file and moved into place, so concurrent runs never see half of one.
+ *
+ * -DJimpleCache=dir picks the directory (default ~/.cache/jimple), 0
+ * turns the cache off; -DCacheDebug=1 reports hits, misses and writes.
+ */
+final class ScriptCache {
+    private static final int MAGIC = 0x4a494d43; // "JIMC"
+    /* Bump when the AST or its encoding changes */
+    private static final int FORMAT = 2;
+    private static final String SETTING = System.getProperty("JimpleCache",
+        Paths.get(System.getProperty("user.home"), ".cache", "jimple").toString());
+    static final boolean ENABLED = !SETTING.equals("0");
+    private static final boolean DEBUG = "1".equals(System.getProperty("CacheDebug"));
+
+    private final Path file;
+    private final long[] key;
+    private final long length;
+
+    /* The cache entry for a script's source bytes */
+    ScriptCache(ByteBuffer source, String charset) {
+        this.length = source.remaining();
+        long seed = murmur(ByteBuffer.wrap((Jimple.SIMPLE_VERSION + "\0" + charset).getBytes(StandardCharsets.UTF_8)), 0)[0];
+        this.key = murmur(source.duplicate(), seed);
+        this.file = Paths.get(SETTING, String.format("%016x%016x.jimc", key[0], key[1]));
+    }
+
+    private static final long C1 = 0x87c37b91114253d5L, C2 = 0x4cf5ad432745937fL;
+
+    /* MurmurHash3_x64_128 of the buffer's remaining bytes */
+    private static long[] murmur(ByteBuffer buf, long seed) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        long len = buf.remaining(), h1 = seed, h2 = seed;
+        while (buf.remaining() >= 16) {
+            long k1 = buf.getLong(), k2 = buf.getLong();
+            h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+            h1 = (Long.rotateLeft(h1, 27) + h2) * 5 + 0x52dce729;
+            h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+            h2 = (Long.rotateLeft(h2, 31) + h1) * 5 + 0x38495ab5;
+        }
+        long k1 = 0, k2 = 0;
+        for (int i = buf.remaining() - 1; i >= 0; i--) {
+            long b = buf.get(buf.position() + i) & 0xffL;
+            if (i >= 8) k2 |= b << (8 * (i - 8));
+            else k1 |= b << (8 * i);
+        }
+        h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+        h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[] { h1, h2 };
+    }
+
+    private static long fmix(long k) {
+        k = (k ^ (k >>> 33)) * 0xff51afd7ed558ccdL;
+        k = (k ^ (k >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return k ^ (k >>> 33);
+    }
+
+    /* The cached program, or null if there is no valid entry */
+    Pgm load() {
+        MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } catch (NoSuchFileException e) {
+            report("miss " + file);
+            return null;
+        } catch (IOException e) {
+            report("can't read " + file + ": " + e);
+            return null;
+        }
+        try {
+            Pgm ast = decode(buf.order(ByteOrder.BIG_ENDIAN));
+            report("hit " + file);
+            return ast;
+        } catch (RuntimeException | Invalid e) {
+            report("invalid " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    void store(Pgm ast) {
+        byte[] payload;
+        try {
+            payload = new Writer().write(ast); // parses any lazily parsed bodies
+        } catch (SyntaxError e) {
+            report("not caching: " + e.message);
+            return;
+        }
+        byte[] version = Jimple.SIMPLE_VERSION.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + 4 + version.length + 16 + 8 + 4 + 8);
+        header.putInt(MAGIC).putInt(FORMAT).putInt(version.length).put(version);
+        header.putLong(key[0]).putLong(key[1]).putLong(length);
+        header.putInt(payload.length).putLong(crc.getValue()).flip();
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer body = ByteBuffer.wrap(payload);
+                while (header.hasRemaining() || body.hasRemaining())
+                    ch.write(new ByteBuffer[] { header, body });
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            report("wrote " + file + " (" + (header.limit() + payload.length) + " bytes)");
+        } catch (IOException e) {
+            report("can't write " + file + ": " + e);
+        }
+    }
+
+    private static void report(String what) {
+        if (DEBUG)
+            System.err.println("cache: " + what);
+    }
+
+    private static final class Invalid extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Invalid(String what) { super(what, null, false, false); }
+    }
+
+    private Pgm decode(ByteBuffer buf) throws Invalid {
+        if (buf.getInt() != MAGIC)
+            throw new Invalid("not a cache entry");
+        if (buf.getInt() != FORMAT)
+            throw new Invalid("format changed");
+        int n = buf.getInt();
+        if (n < 0 || n > buf.remaining())
+            throw new Invalid("bad header");
+        byte[] version = new byte[n];
+        buf.get(version);
+        if (!Jimple.SIMPLE_VERSION.equals(new String(version, StandardCharsets.UTF_8)))
+            throw new Invalid("written by " + new String(version, StandardCharsets.UTF_8));
+        if (buf.getLong() != key[0] || buf.getLong() != key[1] || buf.getLong() != length)
+            throw new Invalid("key mismatch");
+        int size = buf.getInt();
+        long crc = buf.getLong();
+        if (size != buf.remaining())
+            throw new Invalid("truncated");
+        CRC32 check = new CRC32();
+        check.update(buf.duplicate());
+        if (check.getValue() != crc)
+            throw new Invalid("checksum mismatch");
+        Pgm ast = new Reader(buf).pgm();
+        if (buf.hasRemaining())
+            throw new Invalid("trailing bytes");
+        return ast;
+    }
+
+    /*
+     * The payload: varint-encoded, with every name and string literal
+     * stored once in a table up front and referenced by index. Nodes are
+     * written as their type's ordinal followed by their fields; nullable
+     * nodes use ordinal + 1, with 0 for null. Resolver results (depths,
+     * slots, frame sizes, tail calls, captures) are kept; caches that are
+     * filled in at run time are rebuilt empty by the constructors.
+     */
+    private static final class Writer {
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> table = new ArrayList<>();
+        private byte[] out = new byte[4096];
+        private int n = 0;
+
+        byte[] write(Pgm ast) throws SyntaxError {
+            varint(ast.nslots);
+            decls(ast.decls);
+            byte[] body = java.util.Arrays.copyOf(out, n);
+            out = new byte[4096];
+            n = 0;
+            varint(table.size());
+            for (String s: table) {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                varint(utf8.length);
+                bytes(utf8);
+            }
+            bytes(body);
+            return java.util.Arrays.copyOf(out, n);
+        }
+
+        private void decls(List<Decl> decls) throws SyntaxError {
+            varint(decls.size());
+            for (Decl d: decls) {
+                varint(d.type.ordinal());
+                if (d.type == DeclType.VAR) {
+                    id(d.var.id);
+                    expr(d.var.rvalue);
+                } else {
+                    stmt(d.stmt);
+                }
+            }
+        }
+
+        private void stmt(Stmt s) throws SyntaxError {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            varint(s.type.ordinal() + 1);
+            switch (s.type) {
+                case EXPR_STMT: expr(s.e.e); break;
+                case IF_STMT: expr(s.i.cond); stmt(s.i.then); stmt(s.i.alt); break;
+                case WHILE_STMT: expr(s.w.cond); stmt(s.w.then); break;
+                case RETURN_STMT: expr(s.r.expr); break;
+                case BLOCK_STMT: decls(s.b.decls); break;
+                default: break;
+            }
+        }
+
+        private void expr(Expr e) throws SyntaxError {
+            if (e == null) {
+                varint(0);
+                return;
+            }
+            varint(e.type.ordinal() + 1);
+            switch (e.type) {
+                case ASSIGN_EXPR: id(e.a.id); expr(e.a.e); break;
+                case BINARY_EXPR: varint(e.b.o.ordinal()); expr(e.b.lhs); expr(e.b.rhs); break;
+                case UNARY: varint(e.ue.o.ordinal()); expr(e.ue.e); break;
+                case FUNCTION: {
+                    FunctionExpr fe = e.fe;
+                    varint(fe.a.size());
+                    for (Id param: fe.a)
+                        id(param);
+                    stmt(fe.body());
+                    varint(fe.nslots);
+                    varint(fe.captures ? 1 : 0);
+                    string(fe.name);
+                    break;
+                }
+                case CALL:
+                    id(e.ce.id);
+                    varint(e.ce.tail ? 1 : 0);
+                    varint(e.ce.a.size());
+                    for (Expr arg: e.ce.a)
+                        expr(arg);
+                    break;
+                case PRIMARY: {
+                    PrimaryExpr pe = e.pe;
+                    varint(pe.type.ordinal());
+                    switch (pe.type) {
+                        case ID: id(pe.id); break;
+                        case NUM: {
+                            long bits = Double.doubleToRawLongBits(pe.num.doubleValue());
+                            for (int shift = 56; shift >= 0; shift -= 8)
+                                put((byte) (bits >>> shift));
+                            break;
+                        }
+                        case STR: string(pe.str); break;
+                        case B: varint(pe.b ? 1 : 0); break;
+                        default: break;
+                    }
+                    break;
+                }
+                case OBJECT:
+                    varint(e.oe.keys.size());
+                    for (int i = 0; i < e.oe.keys.size(); i++) {
+                        string(e.oe.keys.get(i));
+                        expr(e.oe.values.get(i));
+                    }
+                    break;
+                case PROPERTY_ACCESS: expr(e.pae.object); string(e.pae.property); break;
+                case ARRAY:
+                    varint(e.ae.values.size());
+                    for (Expr v: e.ae.values)
+                        expr(v);
+                    break;
+                case INDEX: expr(e.ie.array); expr(e.ie.index); break;
+                case INDEX_ASSIGN: expr(e.iae.array); expr(e.iae.index); expr(e.iae.e); break;
+            }
+        }
+
+        private void id(Id id) {
+            string(id.name);
+            varint(id.fline);
+            varint(id.fcol);
+            varint(id.depth + 1);
+            varint(id.slot + 1);
+        }
+
+        /* Index + 1 into the string table, 0 for null */
+        private void string(String s) {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            Integer i = strings.get(s);
+            if (i == null) {
+                i = table.size();
+                strings.put(s, i);
+                table.add(s);
+            }
+            varint(i + 1);
+        }
+
+        private void varint(int v) {
+            while ((v & ~0x7f) != 0) {
+                put((byte) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            put((byte) v);
+        }
+
+        private void bytes(byte[] b) {
+            for (byte x: b)
+                put(x);
+        }
+
+        private void put(byte b) {
+            if (n == out.length)
+                out = java.util.Arrays.copyOf(out, n * 2);
+            out[n++] = b;
+        }
+    }
+
+    private static final class Reader {
+        private static final DeclType[] DECLS = DeclType.values();
+        private static final StmtType[] STMTS = StmtType.values();
+        private static final ExprType[] EXPRS = ExprType.values();
+        private static final PrimaryType[] PRIMARIES = PrimaryType.values();
+        private static final Op[] OPS = Op.values();
+
+        private final ByteBuffer in;
+        private final String[] table;
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+            this.table = new String[count()];
+            for (int i = 0; i < table.length; i++) {
+                byte[] utf8 = new byte[count()];
+                in.get(utf8);
+                table[i] = new String(utf8, StandardCharsets.UTF_8);
+            }
+        }
+
+        Pgm pgm() {
+            Pgm p = new Pgm();
+            p.nslots = varint();
+            p.decls = decls();
+            return p;
+        }
+
+        private List<Decl> decls() {
+            int n = count();
+            List<Decl> decls = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                if (DECLS[varint()] == DeclType.VAR) {
+                    Id id = id();
+                    Expr rvalue = expr();
+                    decls.add(new Decl(rvalue == null ? new Var(id) : new Var(id, rvalue)));
+                } else {
+                    decls.add(new Decl(stmt()));
+                }
+            }
+            return decls;
+        }
+
+        private Stmt stmt() {
+            int tag = varint();
+            if (tag == 0)
+                return null;
+            StmtType type = STMTS[tag - 1];
+            switch (type) {
+                case EXPR_STMT: return new Stmt(new ExprStmt(expr()));
+                case IF_STMT: {
+                    Expr cond = expr();
+                    Stmt then = stmt();
+                    Stmt alt = stmt();
+                    return new Stmt(alt == null ? new IfStmt(cond, then) : new IfStmt(cond, then, alt));
+                }
+                case WHILE_STMT: {
+                    Expr cond = expr();
+                    return new Stmt(new WhileStmt(cond, stmt()));
+                }
+                case RETURN_STMT: {
+                    Expr e = expr();
+                    return new Stmt(e == null ? new ReturnStmt() : new ReturnStmt(e));
+                }
+                case BLOCK_STMT: return new Stmt(new BlockStmt(decls()));
+                default: return new Stmt(type);
+            }
+        }
+
+        private Expr expr() {
+            int tag = varint();
+            if (tag == 0)
+                return null;
+            switch (EXPRS[tag - 1]) {
+                case ASSIGN_EXPR: {
+                    Id id = id();
+                    return new Expr(new AssignExpr(id, expr()));
+                }
+                case BINARY_EXPR: {
+                    Op o = OPS[varint()];
+                    Expr lhs = expr();
+                    return new Expr(new BinaryExpr(lhs, expr(), o));
+                }
+                case UNARY: {
+                    Op o = OPS[varint()];
+                    return new Expr(new UnaryExpr(expr(), o));
+                }
+                case FUNCTION: {
+                    int n = count();
+                    ArrayList<Id> params = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++)
+                        params.add(id());
+                    FunctionExpr fe = new FunctionExpr(params, stmt());
+                    fe.nslots = varint();
+                    fe.captures = varint() != 0;
+                    fe.name = string();
+                    return new Expr(fe);
+                }
+                case CALL: {
+                    Id id = id();
+                    boolean tail = varint() != 0;
+                    int n = count();
+                    ArrayList<Expr> args = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++)
+                        args.add(expr());
+                    CallExpr ce = new CallExpr(id, args);
+                    ce.tail = tail;
+                    return new Expr(ce);
+                }
+                case PRIMARY:
+                    switch (PRIMARIES[varint()]) {
+                        case ID: return new Expr(new PrimaryExpr(id()));
+                        case NUM: return new Expr(new PrimaryExpr(in.getDouble()));
+                        case STR: return new Expr(new PrimaryExpr(string()));
+                        case B: return new Expr(new PrimaryExpr(varint() != 0));
+                        default: return new Expr(new PrimaryExpr((Object) null));
+                    }
+                case OBJECT: {
+                    int n = count();
+                    ArrayList<String> keys = new ArrayList<>(n);
+                    ArrayList<Expr> values = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        keys.add(string());
+                        values.add(expr());
+                    }
+                    return new Expr(new ObjectExpr(keys, values));
+                }
+                case ARRAY: {
+                    int n = count();
+                    ArrayList<Expr> values = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++)
+                        values.add(expr());
+                    return new Expr(new ArrayExpr(values));
+                }
+                case INDEX: {
+                    Expr array = expr();
+                    return new Expr(new IndexExpr(array, expr()));
+                }
+                case INDEX_ASSIGN: {
+                    Expr array = expr();
+                    Expr index = expr();
+                    return new Expr(new IndexAssignExpr(array, index, expr()));
+                }
+                default: {
+                    Expr object = expr();
+                    return new Expr(new PropertyAccessExpr(object, string()));
+                }
+            }
+        }
+
+        private Id id() {
+            int name = varint();
+            Id id = new Id(name == 0 ? null : table[name - 1], varint(), varint());
+            id.global = name - 1; // the name's index in this script's table, as Symbols ids are in a parsed one
+            id.depth = varint() - 1;
+            id.slot = varint() - 1;
+            return id;
+        }
+
+        private String string() {
+            int i = varint();
+            return i == 0 ? null : table[i - 1];
+        }
+
+        /* A length, which can't be more than the bytes left */
+        private int count() {
+            int n = varint();
+            if (n < 0 || n > in.remaining())
+                throw new IllegalStateException("bad length " + n);
+            return n;
+        }
+
+        private int varint() {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = in.get();
+                v |= (b & 0x7f) << shift;
+                if (b >= 0)
+                    return v;
+            }
+            throw new IllegalStateException("bad varint");
+        }
+    }
+}
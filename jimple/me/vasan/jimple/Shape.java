@@ -0,0 +1,178 @@
+package me.vasan.jimple;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Hidden class for SimpleObject. A Shape is the ordered list of property
+ * names an object has; objects that got the same properties in the same
+ * order share a Shape and keep just an Object[] of values. Adding a
+ * property follows (or creates) a transition to the next Shape.
+ *
+ * The name -> index map is shared down a line of first children: a
+ * shape's first child adds its key to its parent's map, so a chain of n
+ * properties holds n entries, not n^2/2. Entries at or past a shape's
+ * size belong to its descendants and are ignored. Only a later child,
+ * where key orders branch, copies the entries below its size.
+ *
+ * Shapes are never dropped: EMPTY is process-wide, so every key order a
+ * script has ever used stays reachable from it for the life of the JVM,
+ * under --serve or an Engine as well. That is one chain per distinct
+ * order, not per object.
+ */
+final class Shape {
+    static final Shape EMPTY = new Shape(null, null);
+
+    final Shape parent;
+    final String key; // the property this shape added, at index size - 1
+    final int size;
+    private final Map<String, Integer> index; // shared with descendants, see above
+    private boolean extended = false; // whether a child has taken index, guarded by this
+    private final Map<String, Shape> transitions = new ConcurrentHashMap<>();
+
+    private Shape(Shape parent, String key) {
+        this.parent = parent;
+        this.key = key;
+        if (parent == null) {
+            this.size = 0;
+            this.index = new ConcurrentHashMap<>();
+        } else {
+            this.size = parent.size + 1;
+            this.index = parent.childIndex();
+            this.index.put(key, size - 1);
+        }
+    }
+
+    /* The map a new child adds its key to: this one for the first child, a copy of this shape's part of it for the others */
+    private synchronized Map<String, Integer> childIndex() {
+        if (!extended) {
+            extended = true;
+            return index;
+        }
+        Map<String, Integer> copy = new ConcurrentHashMap<>();
+        for (Map.Entry<String, Integer> e: index.entrySet())
+            if (e.getValue() < size)
+                copy.put(e.getKey(), e.getValue());
+        return copy;
+    }
+
+    int indexOf(String key) {
+        Integer i = index.get(key);
+        return i == null || i >= size ? -1 : i;
+    }
+
+    Shape with(String key) {
+        Shape next = transitions.get(key);
+        if (next == null)
+            next = transitions.computeIfAbsent(key, k -> new Shape(this, k));
+        return next;
+    }
+
+    String[] keys() {
+        String[] keys = new String[size];
+        for (Shape s = this; s.parent != null; s = s.parent)
+            keys[s.size - 1] = s.key;
+        return keys;
+    }
+}
+
+/*
+ * Inline cache for a property access site: up to LIMIT (shape, slot)
+ * pairs, after which the site goes megamorphic and just looks the
+ * property up. Entries are replaced as a whole, never mutated, so a
+ * racing reader sees either the old or the new array.
+ */
+final class PropertyCache {
+    static final int LIMIT = 4;
+
+    private static final class Entry {
+        final Shape shape;
+        final int slot;
+
+        Entry(Shape shape, int slot) {
+            this.shape = shape;
+            this.slot = slot;
+        }
+    }
+
+    final String property;
+    private Entry[] entries = new Entry[0];
+    private boolean megamorphic = false;
+
+    PropertyCache(String property) {
+        this.property = property;
+    }
+
+    Object get(SimpleObject obj) {
+        Shape shape = obj.shape;
+        Entry[] es = entries;
+        for (int i = 0; i < es.length; i++)
+            if (es[i].shape == shape)
+                return es[i].slot < 0 ? null : obj.values[es[i].slot];
+        if (megamorphic)
+            return obj.get(property);
+
+        int slot = shape.indexOf(property);
+        if (es.length == LIMIT) {
+            megamorphic = true;
+        } else {
+            Entry[] next = java.util.Arrays.copyOf(es, es.length + 1);
+            next[es.length] = new Entry(shape, slot);
+            entries = next;
+        }
+        return slot < 0 ? null : obj.values[slot];
+    }
+
+    public String toString() {
+        return property;
+    }
+}
+
+/*
+ * Creates the objects of one object literal. The literal's keys are fixed,
+ * so after the first object is built its shape and the slot of every key
+ * are remembered and later objects skip the transitions. Both are
+ * published in one immutable Layout, so a thread never sees one without
+ * the other.
+ */
+final class ObjectTemplate {
+    private static final class Layout {
+        final Shape shape;
+        final int[] slots;
+
+        Layout(Shape shape, int[] slots) {
+            this.shape = shape;
+            this.slots = slots;
+        }
+    }
+
+    final String[] keys;
+    private Layout layout;
+
+    ObjectTemplate(String[] keys) {
+        this.keys = keys;
+    }
+
+    /* values[i] belongs to keys[i] */
+    SimpleObject create(Object[] values) {
+        Layout l = layout;
+        if (l == null) {
+            SimpleObject obj = new SimpleObject();
+            for (int i = 0; i < keys.length; i++)
+                obj.set(keys[i], values[i]);
+            int[] computed = new int[keys.length];
+            for (int i = 0; i < keys.length; i++)
+                computed[i] = obj.shape.indexOf(keys[i]);
+            layout = new Layout(obj.shape, computed);
+            return obj;
+        }
+        Object[] vals = new Object[l.shape.size];
+        for (int i = 0; i < l.slots.length; i++)
+            vals[l.slots[i]] = values[i];
+        return new SimpleObject(l.shape, vals);
+    }
+
+    public String toString() {
+        return String.join(", ", keys);
+    }
+}
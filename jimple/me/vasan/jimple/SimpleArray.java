@@ -0,0 +1,173 @@
+package me.vasan.jimple;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/*
+ * An array value. While every element is a number the elements are kept
+ * unboxed in nums; the first store of anything else moves them, boxed,
+ * to values, and the array stays that way. Storing at index size()
+ * appends, growing the storage by half again when it is full, so filling
+ * an array one element at a time is amortized constant time. Any other
+ * index outside [0, size) is an error.
+ */
+public class SimpleArray {
+    private static final int MIN_CAPACITY = 8;
+
+    double[] nums; // null once generalized
+    Object[] values; // null while nums holds the elements
+    int size;
+
+    SimpleArray(double[] nums, int size) {
+        this.nums = nums;
+        this.size = size;
+    }
+
+    SimpleArray(Object[] values, int size) {
+        this.values = values;
+        this.size = size;
+    }
+
+    /* An array of elements, which it may keep */
+    static SimpleArray of(Object[] elements) {
+        for (Object e: elements)
+            if (!(e instanceof Number))
+                return new SimpleArray(elements, elements.length);
+        double[] nums = new double[elements.length];
+        for (int i = 0; i < nums.length; i++)
+            nums[i] = ((Number) elements[i]).doubleValue();
+        return new SimpleArray(nums, nums.length);
+    }
+
+    static SimpleArray asArray(Object v) throws RuntimeError {
+        if (!(v instanceof SimpleArray))
+            throw new RuntimeError("Can only index arrays");
+        return (SimpleArray) v;
+    }
+
+    /* An index value as an int; it must be a whole number */
+    static int index(Object i) throws RuntimeError {
+        if (!(i instanceof Number))
+            throw new RuntimeError("Array index must be a number");
+        return index(((Number) i).doubleValue());
+    }
+
+    static int index(double d) throws RuntimeError {
+        int i = (int) d;
+        if (i != d)
+            throw new RuntimeError("Array index must be a whole number, got " + d);
+        return i;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Object get(int i) throws RuntimeError {
+        check(i);
+        return element(i);
+    }
+
+    /* Element i unboxed, for when nums is known to hold the elements */
+    double getDouble(int i) throws RuntimeError {
+        check(i);
+        return nums[i];
+    }
+
+    public void set(int i, Object v) throws RuntimeError {
+        if (nums != null && v instanceof Number) {
+            setDouble(i, ((Number) v).doubleValue());
+            return;
+        }
+        slot(i);
+        if (nums != null)
+            generalize();
+        values[i] = v;
+    }
+
+    void setDouble(int i, double d) throws RuntimeError {
+        slot(i);
+        if (nums != null)
+            nums[i] = d;
+        else
+            values[i] = d;
+    }
+
+    public void push(Object v) throws RuntimeError {
+        set(size, v);
+    }
+
+    private void check(int i) throws RuntimeError {
+        if (i < 0 || i >= size)
+            throw new RuntimeError("Array index " + i + " out of bounds for length " + size);
+    }
+
+    /* Makes i storable: an element, or the one past the end */
+    private void slot(int i) throws RuntimeError {
+        if (i != size) {
+            check(i);
+            return;
+        }
+        int capacity = nums != null ? nums.length : values.length;
+        if (size == capacity) {
+            int grown = Math.max(MIN_CAPACITY, capacity + (capacity >> 1));
+            if (nums != null)
+                nums = Arrays.copyOf(nums, grown);
+            else
+                values = Arrays.copyOf(values, grown);
+        }
+        size++;
+    }
+
+    private void generalize() {
+        values = new Object[nums.length];
+        for (int i = 0; i < size; i++)
+            values[i] = nums[i];
+        nums = null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                sb.append(", ");
+            if (nums != null) {
+                sb.append(nums[i]);
+                continue;
+            }
+            Object value = values[i];
+            if (value instanceof String)
+                sb.append("\"").append(value).append("\"");
+            else
+                sb.append(value == null ? "nil" : value.toString());
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (other == null || getClass() != other.getClass()) return false;
+        SimpleArray that = (SimpleArray) other;
+        if (size != that.size) return false;
+        for (int i = 0; i < size; i++)
+            if (!Objects.equals(element(i), that.element(i)))
+                return false;
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 1;
+        for (int i = 0; i < size; i++)
+            h = 31 * h + Objects.hashCode(element(i));
+        return h;
+    }
+
+    private Object element(int i) {
+        return nums != null ? (Object) nums[i] : values[i];
+    }
+}
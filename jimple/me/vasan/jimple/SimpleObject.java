@@ -1,37 +1,71 @@
 package me.vasan.jimple;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+/*
+ * Properties are laid out by a Shape: the shape maps names to indices into
+ * values, so objects built the same way share the name -> index table.
+ */
 public class SimpleObject {
-    private Map<String, Object> properties;
+    Shape shape;
+    Object[] values;
 
     public SimpleObject() {
-        this.properties = new HashMap<>();
+        this.shape = Shape.EMPTY;
+        this.values = new Object[0];
     }
 
     public SimpleObject(Map<String, Object> properties) {
-        this.properties = new HashMap<>(properties);
+        this();
+        for (Map.Entry<String, Object> entry : properties.entrySet())
+            set(entry.getKey(), entry.getValue());
+    }
+
+    SimpleObject(Shape shape, Object[] values) {
+        this.shape = shape;
+        this.values = values;
     }
 
     public Object get(String key) {
-        return properties.get(key);
+        int i = shape.indexOf(key);
+        return i < 0 ? null : values[i];
     }
 
     public void set(String key, Object value) {
-        properties.put(key, value);
+        int i = shape.indexOf(key);
+        if (i < 0) {
+            shape = shape.with(key);
+            i = shape.size - 1;
+            if (i >= values.length)
+                values = java.util.Arrays.copyOf(values, Math.max(4, values.length * 2));
+        }
+        values[i] = value;
     }
 
     public boolean has(String key) {
-        return properties.containsKey(key);
+        return shape.indexOf(key) >= 0;
     }
 
     public Object remove(String key) {
-        return properties.remove(key);
+        int i = shape.indexOf(key);
+        if (i < 0) return null;
+        Object old = values[i];
+        String[] keys = shape.keys();
+        Object[] vals = values;
+        shape = Shape.EMPTY;
+        values = new Object[vals.length];
+        for (int k = 0; k < keys.length; k++)
+            if (k != i) set(keys[k], vals[k]);
+        return old;
     }
 
     public Map<String, Object> getProperties() {
-        return new HashMap<>(properties);
+        Map<String, Object> properties = new LinkedHashMap<>();
+        String[] keys = shape.keys();
+        for (int i = 0; i < keys.length; i++)
+            properties.put(keys[i], values[i]);
+        return properties;
     }
 
     @Override
@@ -39,7 +73,7 @@ public class SimpleObject {
         StringBuilder sb = new StringBuilder();
         sb.append("{");
         boolean first = true;
-        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+        for (Map.Entry<String, Object> entry : getProperties().entrySet()) {
             if (!first) {
                 sb.append(", ");
             }
@@ -61,11 +95,11 @@ public class SimpleObject {
         if (this == other) return true;
         if (other == null || getClass() != other.getClass()) return false;
         SimpleObject that = (SimpleObject) other;
-        return properties.equals(that.properties);
+        return getProperties().equals(that.getProperties());
     }
 
     @Override
     public int hashCode() {
-        return properties.hashCode();
+        return getProperties().hashCode();
     }
-}
\ No newline at end of file
+}
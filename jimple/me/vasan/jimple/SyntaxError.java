@@ -0,0 +1,13 @@
+package me.vasan.jimple;
+
+/* A script didn't parse or compile; message says where */
+public class SyntaxError extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final String message;
+
+    public SyntaxError(String message) {
+        super(message);
+        this.message = message;
+    }
+}
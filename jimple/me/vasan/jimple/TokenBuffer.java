@@ -0,0 +1,208 @@
+package me.vasan.jimple;
+
+/*
+ * Tokens stored as parallel arrays instead of Token objects. A token is an
+ * index: its type, where its text is in the source, its position, and in
+ * sym the Symbols id of an identifier or keyword, or for a number the
+ * index of its value in numbers. Text is only copied out of the source
+ * when the parser asks for it.
+ *
+ * A buffer either keeps every token, or (with a window) only the most
+ * recent ones, reusing the arrays as a ring.
+ */
+final class TokenBuffer {
+    private static final TT[] TYPES = TT.values();
+
+    final CharSequence source;
+    final Symbols symbols;
+    private int[] type, offset, length, line, col, sym;
+    private double[] numbers;
+    private final boolean ring;
+    private int mask; // index -> array slot, for rings
+    int size = 0; // tokens added so far
+    private int nnumbers = 0;
+
+    /* window is a power of two, or 0 to keep all tokens */
+    TokenBuffer(CharSequence source, Symbols symbols, int window) {
+        this.source = source;
+        this.symbols = symbols;
+        this.ring = window > 0;
+        int n = ring ? window : 256;
+        type = new int[n];
+        offset = new int[n];
+        length = new int[n];
+        line = new int[n];
+        col = new int[n];
+        sym = new int[n];
+        numbers = new double[ring ? window : 16];
+        mask = ring ? n - 1 : -1;
+    }
+
+    /* Resizes the arrays of a buffer that keeps every token to n tokens */
+    private void resize(int n) {
+        type = java.util.Arrays.copyOf(type, n);
+        offset = java.util.Arrays.copyOf(offset, n);
+        length = java.util.Arrays.copyOf(length, n);
+        line = java.util.Arrays.copyOf(line, n);
+        col = java.util.Arrays.copyOf(col, n);
+        sym = java.util.Arrays.copyOf(sym, n);
+    }
+
+    /* Drops the spare capacity once all tokens are in */
+    void trim() {
+        if (!ring) {
+            resize(size);
+            numbers = java.util.Arrays.copyOf(numbers, nnumbers);
+        }
+    }
+
+    void add(TT t, int off, int len, int ln, int cp, int symbol, double value) {
+        if (!ring && size == type.length)
+            resize(size * 2);
+        if (t == TT.NUMBER) {
+            if (!ring && nnumbers == numbers.length)
+                numbers = java.util.Arrays.copyOf(numbers, nnumbers * 2);
+            numbers[nnumbers & mask] = value;
+            symbol = nnumbers++;
+        }
+        int s = size & mask;
+        type[s] = t.ordinal();
+        offset[s] = off;
+        length[s] = len;
+        line[s] = ln;
+        col[s] = cp;
+        sym[s] = symbol;
+        size++;
+    }
+
+    private int slot(int i) {
+        if (ring && i < size - type.length)
+            throw new IllegalStateException("token " + i + " is behind the lookahead window");
+        return i & mask;
+    }
+
+    TT type(int i) { return TYPES[type[slot(i)]]; }
+    int offset(int i) { return offset[slot(i)]; }
+    int line(int i) { return line[slot(i)]; }
+    int col(int i) { return col[slot(i)]; }
+    double number(int i) { return numbers[sym[slot(i)] & mask]; }
+
+    /* Identifier name, shared by every occurrence of the identifier */
+    String name(int i) {
+        int s = slot(i);
+        return sym[s] >= 0 && type[s] != TT.NUMBER.ordinal() ? symbols.name(sym[s]) : text(i);
+    }
+
+    /* Symbols id of an identifier or keyword, -1 for other tokens */
+    int symbol(int i) {
+        int s = slot(i);
+        return type[s] != TT.NUMBER.ordinal() ? sym[s] : -1;
+    }
+
+    /* Source text of the token; a string literal's text is its contents */
+    String text(int i) {
+        int s = slot(i);
+        return source.subSequence(offset[s], offset[s] + length[s]).toString();
+    }
+
+    /* Heap used by the token arrays */
+    long bytes() {
+        return (long) type.length * 6 * Integer.BYTES + (long) numbers.length * Double.BYTES;
+    }
+
+    String toString(int i) {
+        return String.format("%16s, %8s, %8d, %8d", type(i), text(i), line(i), col(i));
+    }
+}
+
+/*
+ * Interns identifiers: each distinct name is hashed straight from the
+ * source and copied out once, and is known by an int id from then on.
+ * Keywords are interned first, so their ids map to their token types.
+ */
+final class Symbols {
+    private static final String[] KEYWORDS = {
+        "and", "else", "false", "function", "if", "nil", "or",
+        "return", "true", "let", "while", "break", "continue"
+    };
+    private static final TT[] KEYWORD_TYPES = {
+        TT.AND, TT.ELSE, TT.FALSE, TT.FUNCTION, TT.IF, TT.NIL, TT.OR,
+        TT.RETURN, TT.TRUE, TT.LET, TT.WHILE, TT.BREAK, TT.CONTINUE
+    };
+
+    private int[] table = new int[256]; // id + 1, 0 for an empty bucket
+    private String[] names = new String[128];
+    private int[] hashes = new int[128];
+    private int count = 0;
+
+    Symbols() {
+        for (String k: KEYWORDS)
+            intern(k, 0, k.length());
+    }
+
+    int intern(CharSequence src, int off, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++)
+            h = 31 * h + src.charAt(off + i);
+        int mask = table.length - 1;
+        for (int b = mix(h) & mask; ; b = (b + 1) & mask) {
+            int id = table[b] - 1;
+            if (id < 0) {
+                id = add(src.subSequence(off, off + len).toString(), h);
+                table[b] = id + 1;
+                if (2 * count > table.length)
+                    rehash();
+                return id;
+            }
+            if (hashes[id] == h && same(names[id], src, off, len))
+                return id;
+        }
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean same(String name, CharSequence src, int off, int len) {
+        if (name.length() != len)
+            return false;
+        for (int i = 0; i < len; i++)
+            if (name.charAt(i) != src.charAt(off + i))
+                return false;
+        return true;
+    }
+
+    private int add(String name, int h) {
+        if (count == names.length) {
+            names = java.util.Arrays.copyOf(names, count * 2);
+            hashes = java.util.Arrays.copyOf(hashes, count * 2);
+        }
+        names[count] = name;
+        hashes[count] = h;
+        return count++;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < count; id++) {
+            int b = mix(hashes[id]) & mask;
+            while (table[b] != 0)
+                b = (b + 1) & mask;
+            table[b] = id + 1;
+        }
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    /* The keyword's token type, IDENTIFIER for other names */
+    TT type(int id) {
+        return id < KEYWORD_TYPES.length ? KEYWORD_TYPES[id] : TT.IDENTIFIER;
+    }
+
+    int size() {
+        return count;
+    }
+}
@@ -0,0 +1,332 @@
+package me.vasan.jimple;
+
+/* A function value in the VM: compiled body plus the frame it was created in */
+class Closure {
+    final Chunk chunk;
+    final Frame env;
+
+    Closure(Chunk chunk, Frame env) {
+        this.chunk = chunk;
+        this.env = env;
+    }
+
+    public String toString() {
+        return "<function>";
+    }
+}
+
+class Frame {
+    final Object[] slots;
+    final Frame parent;
+
+    Frame(int size, Frame parent) {
+        this.slots = new Object[size];
+        this.parent = parent;
+    }
+}
+
+/*
+ * Stack machine for Chunks produced by Compiler. Operands live on a single
+ * value stack shared by all activations; locals live in heap Frames so
+ * closures can keep them alive.
+ */
+public class VM implements Caller {
+    private final Environment root;
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+
+    public VM(Environment root) {
+        this.root = root;
+    }
+
+    public Object run(Chunk script) throws RuntimeError {
+        return execute(script, new Frame(script.nslots, null));
+    }
+
+    /* Calls cl through its Jit code if it has some and all arguments are numbers */
+    private Object compiled(Closure cl, Object[] st, int base, int argc) {
+        FunctionExpr fe = cl.chunk.fe;
+        JitFunction jf = Jit.tier(fe, root);
+        if (jf == null || argc < fe.a.size())
+            return null;
+        double[] args = new double[fe.a.size()];
+        for (int i = 0; i < args.length; i++) {
+            if (!(st[base + i] instanceof Number))
+                return null;
+            args[i] = ((Number) st[base + i]).doubleValue();
+        }
+        return jf.call(args, root);
+    }
+
+    /* For natives calling back into the script, see Caller */
+    public Object apply(Object fn, Object[] args) throws RuntimeError {
+        if (fn instanceof NativeFunction)
+            return ((NativeFunction) fn).call(root, args);
+        if (!(fn instanceof Closure))
+            throw new RuntimeError("Can only call functions");
+        Closure cl = (Closure) fn;
+        int argc = args.length;
+        if (sp + argc >= stack.length)
+            stack = java.util.Arrays.copyOf(stack, Math.max(stack.length * 2, sp + argc + 1));
+        System.arraycopy(args, 0, stack, sp, argc);
+        Object ret = compiled(cl, stack, sp, argc);
+        if (ret != null)
+            return ret;
+        if (cl.chunk.pending != null)
+            compile(cl.chunk);
+        Frame callee = new Frame(cl.chunk.nslots, cl.env);
+        System.arraycopy(args, 0, callee.slots, 0, Math.min(argc, cl.chunk.nparams));
+        return execute(cl.chunk, callee);
+    }
+
+    /*
+     * Calls fn with the argc arguments at st[base], without an array for up
+     * to three. The stack above them is free for fn to call back with.
+     */
+    private Object callNative(NativeFunction fn, Object[] st, int base, int argc) throws RuntimeError {
+        switch (argc) {
+            case 0: return fn.call0(root);
+            case 1: return fn.call1(root, st[base]);
+            case 2: return fn.call2(root, st[base], st[base + 1]);
+            case 3: return fn.call3(root, st[base], st[base + 1], st[base + 2]);
+            default: return fn.call(root, java.util.Arrays.copyOfRange(st, base, base + argc));
+        }
+    }
+
+    /* Compiles a lazily parsed function on its first call */
+    private static void compile(Chunk c) throws RuntimeError {
+        try {
+            c.compile();
+        } catch (SyntaxError e) {
+            throw new RuntimeError("in " + (c.fe.name != null ? c.fe.name : "<function>") + ": " + e.message);
+        }
+    }
+
+    /*
+     * Runs c in frame. A TAIL_CALL switches c and frame to the callee's and
+     * starts over instead of recursing, so the activation is reused.
+     *
+     * The activation's operands start at sp, which calls raise above them
+     * for the callee and set back when it returns, so sp is the same on
+     * return as on entry.
+     */
+    private Object execute(Chunk c, Frame frame) throws RuntimeError {
+        final int bottom = sp;
+        if (sp + c.maxStack >= stack.length)
+            stack = java.util.Arrays.copyOf(stack, Math.max(stack.length * 2, sp + c.maxStack + 1));
+
+        int[] code = c.code;
+        Object[] pool = c.pool;
+        Object[] slots = frame.slots;
+        Object[] st = stack;
+        int top = sp;
+        int pc = 0;
+        Object result = null;
+
+        while (true) {
+            switch (code[pc++]) {
+                case OpCode.CONST: st[top++] = pool[code[pc++]]; break;
+                case OpCode.NIL: st[top++] = null; break;
+                case OpCode.TRUE: st[top++] = true; break;
+                case OpCode.FALSE: st[top++] = false; break;
+                case OpCode.POP: top--; break;
+                case OpCode.LOAD: st[top++] = slots[code[pc++]]; break;
+                case OpCode.STORE: slots[code[pc++]] = st[top - 1]; break;
+                case OpCode.LOAD_UP: {
+                    Frame f = frame;
+                    for (int d = code[pc++]; d > 0; d--) f = f.parent;
+                    st[top++] = f.slots[code[pc++]];
+                    break;
+                }
+                case OpCode.STORE_UP: {
+                    Frame f = frame;
+                    for (int d = code[pc++]; d > 0; d--) f = f.parent;
+                    f.slots[code[pc++]] = st[top - 1];
+                    break;
+                }
+                case OpCode.GET_GLOBAL: st[top++] = root.get((String) pool[code[pc++]]); break;
+                case OpCode.SET_GLOBAL: root.update((String) pool[code[pc++]], st[top - 1]); break;
+                case OpCode.DEF_GLOBAL: root.put((String) pool[code[pc++]], st[--top]); break;
+                case OpCode.RESULT: result = st[--top]; break;
+                case OpCode.ADD: {
+                    Object rhs = st[--top], lhs = st[top - 1];
+                    if (lhs instanceof String) st[top - 1] = lhs + ((String) rhs);
+                    else st[top - 1] = ((Number) lhs).doubleValue() + ((Number) rhs).doubleValue();
+                    break;
+                }
+                case OpCode.SUB: {
+                    Object rhs = st[--top];
+                    st[top - 1] = ((Number) st[top - 1]).doubleValue() - ((Number) rhs).doubleValue();
+                    break;
+                }
+                case OpCode.MUL: {
+                    Object rhs = st[--top];
+                    st[top - 1] = ((Number) st[top - 1]).doubleValue() * ((Number) rhs).doubleValue();
+                    break;
+                }
+                case OpCode.DIV: {
+                    Object rhs = st[--top];
+                    st[top - 1] = ((Number) st[top - 1]).doubleValue() / ((Number) rhs).doubleValue();
+                    break;
+                }
+                case OpCode.EQ: {
+                    Object rhs = st[--top];
+                    st[top - 1] = BinaryNode.equal(st[top - 1], rhs);
+                    break;
+                }
+                case OpCode.NEQ: {
+                    Object rhs = st[--top];
+                    st[top - 1] = !BinaryNode.equal(st[top - 1], rhs);
+                    break;
+                }
+                case OpCode.GT: {
+                    Object rhs = st[--top];
+                    st[top - 1] = ((Number) st[top - 1]).doubleValue() > ((Number) rhs).doubleValue();
+                    break;
+                }
+                case OpCode.GTE: {
+                    Object rhs = st[--top];
+                    st[top - 1] = ((Number) st[top - 1]).doubleValue() >= ((Number) rhs).doubleValue();
+                    break;
+                }
+                case OpCode.LT: {
+                    Object rhs = st[--top];
+                    st[top - 1] = ((Number) st[top - 1]).doubleValue() < ((Number) rhs).doubleValue();
+                    break;
+                }
+                case OpCode.LTE: {
+                    Object rhs = st[--top];
+                    st[top - 1] = ((Number) st[top - 1]).doubleValue() <= ((Number) rhs).doubleValue();
+                    break;
+                }
+                case OpCode.OR_ELSE:
+                    if ((Boolean) st[top - 1]) pc = code[pc];
+                    else { top--; pc++; }
+                    break;
+                case OpCode.AND_THEN:
+                    if ((Boolean) st[top - 1]) { top--; pc++; }
+                    else pc = code[pc];
+                    break;
+                case OpCode.NOT: st[top - 1] = !(Boolean) st[top - 1]; break;
+                case OpCode.NEG: st[top - 1] = -((Number) st[top - 1]).doubleValue(); break;
+                case OpCode.JUMP: pc = code[pc]; break;
+                case OpCode.JUMP_FALSE:
+                    if ((Boolean) st[--top]) pc++;
+                    else pc = code[pc];
+                    break;
+                case OpCode.JUMP_TRUE:
+                    if ((Boolean) st[--top]) pc = code[pc];
+                    else pc++;
+                    break;
+                case OpCode.CALL: {
+                    int argc = code[pc++];
+                    int base = top - argc;
+                    Object fnRef = st[base - 1];
+                    Object ret;
+                    if (fnRef instanceof Closure && (ret = compiled((Closure) fnRef, st, base, argc)) != null) {
+                        /* ran as JVM code */
+                    } else if (fnRef instanceof Closure) {
+                        Closure cl = (Closure) fnRef;
+                        if (cl.chunk.pending != null)
+                            compile(cl.chunk);
+                        Frame callee = new Frame(cl.chunk.nslots, cl.env);
+                        System.arraycopy(st, base, callee.slots, 0, Math.min(argc, cl.chunk.nparams));
+                        sp = top;
+                        ret = execute(cl.chunk, callee);
+                        sp = bottom;
+                        st = stack;
+                    } else if (fnRef instanceof NativeFunction) {
+                        sp = top;
+                        ret = callNative((NativeFunction) fnRef, st, base, argc);
+                        sp = bottom;
+                        st = stack;
+                    } else {
+                        throw new RuntimeError("Can only call functions");
+                    }
+                    top = base - 1;
+                    st[top++] = ret;
+                    break;
+                }
+                case OpCode.TAIL_CALL: {
+                    int argc = code[pc++];
+                    int base = top - argc;
+                    Object fnRef = st[base - 1];
+                    if (!(fnRef instanceof Closure)) {
+                        /* natives just return their result */
+                        if (!(fnRef instanceof NativeFunction))
+                            throw new RuntimeError("Can only call functions");
+                        sp = top;
+                        Object ret = callNative((NativeFunction) fnRef, st, base, argc);
+                        sp = bottom;
+                        return ret;
+                    }
+                    Closure cl = (Closure) fnRef;
+                    Chunk callee = cl.chunk;
+                    if (callee.pending != null)
+                        compile(callee);
+                    /* frames nobody captured can be overwritten in place */
+                    if (c.captures || cl.env != frame.parent || callee.nslots != slots.length)
+                        frame = new Frame(callee.nslots, cl.env);
+                    else
+                        java.util.Arrays.fill(slots, null);
+                    System.arraycopy(st, base, frame.slots, 0, Math.min(argc, callee.nparams));
+                    top = bottom;
+                    if (top + callee.maxStack >= st.length)
+                        st = stack = java.util.Arrays.copyOf(st, Math.max(st.length * 2, top + callee.maxStack + 1));
+                    c = callee;
+                    code = c.code;
+                    pool = c.pool;
+                    slots = frame.slots;
+                    pc = 0;
+                    break;
+                }
+                case OpCode.RETURN:
+                    return result;
+                case OpCode.RETURN_VALUE:
+                    return st[--top];
+                case OpCode.CLOSURE: st[top++] = new Closure((Chunk) pool[code[pc++]], frame); break;
+                case OpCode.OBJECT: {
+                    ObjectTemplate template = (ObjectTemplate) pool[code[pc++]];
+                    int n = code[pc++];
+                    Object[] values = new Object[n];
+                    System.arraycopy(st, top - n, values, 0, n);
+                    top -= n;
+                    st[top++] = template.create(values);
+                    break;
+                }
+                case OpCode.GET_PROP: {
+                    Object object = st[top - 1];
+                    PropertyCache cache = (PropertyCache) pool[code[pc++]];
+                    if (object instanceof SimpleObject) {
+                        st[top - 1] = cache.get((SimpleObject) object);
+                    } else {
+                        throw new RuntimeError("Cannot access property '" + cache.property + "' on non-object");
+                    }
+                    break;
+                }
+                case OpCode.ARRAY: {
+                    int n = code[pc++];
+                    Object[] elements = new Object[n];
+                    System.arraycopy(st, top - n, elements, 0, n);
+                    top -= n;
+                    st[top++] = SimpleArray.of(elements);
+                    break;
+                }
+                case OpCode.GET_INDEX: {
+                    Object index = st[--top];
+                    st[top - 1] = SimpleArray.asArray(st[top - 1]).get(SimpleArray.index(index));
+                    break;
+                }
+                case OpCode.SET_INDEX: {
+                    Object value = st[--top];
+                    Object index = st[--top];
+                    SimpleArray.asArray(st[top - 1]).set(SimpleArray.index(index), value);
+                    st[top - 1] = value;
+                    break;
+                }
+                default:
+                    throw new RuntimeError("VM: bad opcode " + code[pc - 1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+#!/bin/bash
+# Runs tests/*.sim (or the ones given) with the interpreter and with --vm,
+# in a small heap and without the script cache. A test fails if the two
+# print different things, or if it has a .out file and doesn't print
+# that. Timings and Java stack frames are masked out first.
+#
+# With --cache, the runs go through a fresh script cache instead: the
+# interpreter writes each test's entry, then --vm and the interpreter
+# must both load it and still print the same. Last, an entry is damaged
+# (a flipped payload byte, then a cut-off file) and must be parsed again.
+cd "$(dirname "$0")/.."
+classes=${CLASSES:-jimple}
+cache=0
+if [ "$1" = "--cache" ]; then
+    shift
+    cache=$(mktemp -d)
+    trap 'rm -rf "$cache"' EXIT
+fi
+mask() {
+    sed -E -e 's/[0-9.]+(E-?[0-9]+)? ?(ns|us|ms|s)\b/T/g' -e 's/[0-9.]+ B\/call/N B\/call/' \
+        -e '/^\s+at /d' -e '/^\s+\.\.\. [0-9]+ more/d' -e '/^cache: /d'
+}
+raw() {
+    java -Xmx32m -DJimpleCache="$cache" -DCacheDebug=1 -cp "$classes" me.vasan.jimple.Jimple "$@" 2>&1
+}
+run() {
+    raw "$@" | mask
+}
+# expect <test> <what the run printed, unmasked> <hit|miss|invalid|wrote>
+expect() {
+    if ! grep -q "^cache: $3 " <<< "$2"; then
+        echo "FAIL $1: no cache $3"; failed=1
+    fi
+}
+check() { # <test> <output> <what it was compared to>
+    if [ "$2" != "$(cat "${1%.sim}.out")" ]; then
+        echo "FAIL $1: unexpected output $3"; diff "${1%.sim}.out" <(echo "$2"); failed=1
+        return 1
+    fi
+}
+[ $# -eq 0 ] && set -- tests/*.sim
+failed=0
+for t in "$@"; do
+    if [ "$cache" = 0 ]; then
+        a=$(run "$t")
+        b=$(run --vm "$t")
+    else
+        w=$(raw "$t"); expect "$t" "$w" wrote
+        h=$(raw --vm "$t"); expect "$t" "$h" hit
+        c=$(raw "$t"); expect "$t" "$c" hit
+        a=$(mask <<< "$w")
+        b=$(mask <<< "$h")
+        if [ "$a" != "$(mask <<< "$c")" ]; then
+            echo "FAIL $t: the interpreter prints something else from the cache"; diff <(echo "$a") <(mask <<< "$c"); failed=1
+        fi
+    fi
+    if [ "$a" != "$b" ]; then
+        echo "FAIL $t: interpreter and --vm differ"; diff <(echo "$a") <(echo "$b"); failed=1
+    elif [ -f "${t%.sim}.out" ] && ! check "$t" "$a"; then
+        :
+    else
+        echo "ok   $t"
+    fi
+done
+
+if [ "$cache" != 0 ]; then
+    t=tests/array.sim
+    rm -f "$cache"/*.jimc
+    entry=$(raw "$t" | sed -nE 's/^cache: wrote (.*) \([0-9]+ bytes\)$/\1/p')
+    size=$(stat -c %s "$entry")
+    # the last byte is payload, so only the checksum can catch it
+    printf '\xff' | cmp -s - <(tail -c 1 "$entry") && byte='\x00' || byte='\xff'
+    printf "$byte" | dd of="$entry" bs=1 seek=$((size - 1)) conv=notrunc status=none
+    o=$(raw "$t"); expect "$t" "$o" invalid; expect "$t" "$o" wrote
+    check "$t" "$(mask <<< "$o")" "after a damaged entry" && echo "ok   $t with a damaged cache entry"
+    truncate -s $((size / 2)) "$entry"
+    o=$(raw --vm "$t"); expect "$t" "$o" invalid; expect "$t" "$o" wrote
+    check "$t" "$(mask <<< "$o")" "after a cut-off entry" && echo "ok   $t with a cut-off cache entry"
+    o=$(raw "$t"); expect "$t" "$o" hit
+fi
+exit $failed